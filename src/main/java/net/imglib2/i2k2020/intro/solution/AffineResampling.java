@@ -0,0 +1,215 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Writes an affinely transformed, interpolated image into a target in parallel
+ * blocks. Every target block is projected back into the source first: blocks
+ * that cannot see the source are filled with the background value without
+ * interpolating, blocks that lie well inside the source read it without
+ * out-of-bounds checks, and only the blocks at the border of the source read
+ * the extended image. The blocks are resampled line by line with the
+ * ScanlineResampler.
+ */
+public class AffineResampling {
+
+	/**
+	 * Resample a source into a target, equivalent to copying
+	 * Views.raster(RealViews.affine(Views.interpolate(Views.extendValue(source,
+	 * background), ...), transform)) into the target
+	 *
+	 * @param source
+	 * @param transform
+	 *            - from source to target coordinates
+	 * @param method
+	 * @param background
+	 *            - the value outside of the source
+	 * @param target
+	 * @param blockSize
+	 * @param numThreads
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void resample(
+			final RandomAccessibleInterval<T> source,
+			final AffineGet transform,
+			final BatchInterpolation.Method method,
+			final double background,
+			final RandomAccessibleInterval<S> target,
+			final int[] blockSize,
+			final int numThreads) {
+
+		final int n = target.numDimensions();
+
+		// target to source, and the source step per target pixel along a line
+		final AffineGet inverse = transform.inverse();
+		final double[] delta = new double[n];
+		inverse.d(0).localize(delta);
+
+		final T sourceBackground = Util.getTypeFromInterval(source).createVariable();
+		sourceBackground.setReal(background);
+
+		final RandomAccessible<T> extended = Views.extendValue(source, sourceBackground);
+
+		// the kernel table is shared by all tasks
+		final TableLanczosInterpolator.Factory<T> lanczos = new TableLanczosInterpolator.Factory<>();
+
+		final double radius = radius(method);
+
+		Blocks.forEach(Blocks.split(target, blockSize), block -> {
+			final RandomAccessibleInterval<S> targetBlock = Views.interval(target, block);
+			final long numLines = RowBufferedCursor.numRows(block);
+
+			final double[] min = new double[n];
+			final double[] max = new double[n];
+			footprint(inverse, block, min, max);
+
+			boolean misses = false;
+			boolean inside = true;
+
+			for (int d = 0; d < n; ++d) {
+				misses |= max[d] < source.min(d) - radius || min[d] > source.max(d) + radius;
+
+				// one more pixel for the rounding of start + x * step
+				inside &= min[d] - radius - 1 >= source.min(d) && max[d] + radius + 1 <= source.max(d);
+			}
+
+			if (misses)
+				fill(targetBlock, background);
+			else if (inside)
+				ScanlineResampler.resampleLines(source, inverse, delta, method, lanczos, targetBlock, 0, numLines - 1);
+			else
+				ScanlineResampler.resampleLines(extended, inverse, delta, method, lanczos, targetBlock, 0, numLines - 1);
+		}, numThreads);
+	}
+
+	/**
+	 * @param method
+	 * @return how far from a sample position the interpolation reads the
+	 *         source
+	 */
+	public static double radius(final BatchInterpolation.Method method) {
+
+		switch (method) {
+		case NEAREST_NEIGHBOR:
+			return 0.5;
+		case NLINEAR:
+			return 1;
+		default:
+			// the alpha of TableLanczosInterpolator.Factory()
+			return 3;
+		}
+	}
+
+	/**
+	 * The bounding box of the source positions of a target block
+	 *
+	 * @param inverse
+	 *            - from target to source coordinates
+	 * @param block
+	 * @param min
+	 * @param max
+	 */
+	public static void footprint(final AffineGet inverse, final Interval block, final double[] min, final double[] max) {
+
+		final int n = block.numDimensions();
+		final double[] corner = new double[n];
+		final double[] sourceCorner = new double[n];
+
+		for (int d = 0; d < n; ++d) {
+			min[d] = Double.POSITIVE_INFINITY;
+			max[d] = Double.NEGATIVE_INFINITY;
+		}
+
+		// an affine transform maps the block to the hull of its corners
+		for (int j = 0; j < 1 << n; ++j) {
+			for (int d = 0; d < n; ++d)
+				corner[d] = (j & (1 << d)) == 0 ? block.min(d) : block.max(d);
+
+			inverse.apply(corner, sourceCorner);
+
+			for (int d = 0; d < n; ++d) {
+				min[d] = Math.min(min[d], sourceCorner[d]);
+				max[d] = Math.max(max[d], sourceCorner[d]);
+			}
+		}
+	}
+
+	/**
+	 * Set all pixels of a block to a value
+	 *
+	 * @param block
+	 * @param value
+	 */
+	public static <S extends RealType<S>> void fill(final RandomAccessibleInterval<S> block, final double value) {
+
+		final Cursor<S> cursor = Views.flatIterable(block).cursor();
+
+		if (!cursor.hasNext())
+			return;
+
+		final S s = cursor.next().createVariable();
+		s.setReal(value);
+
+		cursor.reset();
+
+		while (cursor.hasNext())
+			cursor.next().set(s);
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// the rotation of Task9_RealViews.rotation, magnified so it takes a
+		// while; the corners of the union of both intervals are empty
+		final AffineTransform2D transform = new AffineTransform2D();
+		transform.rotate(Math.toRadians(45));
+		transform.scale(8);
+
+		final Interval interval = Intervals.union(
+				Intervals.largestContainedInterval(transform.estimateBounds(blobs)),
+				blobs);
+
+		final Img<UnsignedByteType> target = new ArrayImgFactory<>(new UnsignedByteType()).create(interval);
+		final RandomAccessibleInterval<UnsignedByteType> translated = Views.translate(target, Intervals.minAsLongArray(interval));
+
+		for (int i = 0; i < 3; ++i) {
+			long time = System.currentTimeMillis();
+
+			Blocks.copy(
+					Views.raster(RealViews.affine(Views.interpolate(Views.extendZero(blobs), new NLinearInterpolatorFactory<>()), transform)),
+					translated,
+					new int[]{256, 256});
+
+			System.out.println("Views.raster: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			resample(blobs, transform, BatchInterpolation.Method.NLINEAR, 0, translated, new int[]{256, 256}, numThreads);
+			System.out.println("affine resampling: " + (System.currentTimeMillis() - time) + " ms");
+		}
+
+		ImageJFunctions.show(target).setTitle("rotated");
+	}
+}
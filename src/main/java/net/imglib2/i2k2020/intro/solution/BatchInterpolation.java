@@ -0,0 +1,287 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Interpolate an image at many real coordinates at once. The coordinates are
+ * given as one array per dimension (structure of arrays), the values are
+ * written into a double[], and the points are processed in parallel chunks.
+ * Consecutive points in the same pixel (nearest neighbor) or between the same
+ * pixels (n-linear) reuse the values that were read for the previous point,
+ * and Lanczos reuses the columns of its neighborhood (see
+ * TableLanczosInterpolator), so coordinates in spatial order, e.g. from a
+ * deformed grid, are interpolated fastest.
+ */
+public class BatchInterpolation {
+
+	/**
+	 * The supported interpolation methods
+	 */
+	public enum Method {
+		NEAREST_NEIGHBOR,
+		NLINEAR,
+		LANCZOS
+	}
+
+	// how many points a task interpolates
+	public static final int CHUNK_SIZE = 65536;
+
+	/**
+	 * Interpolate a source at many coordinates in parallel
+	 *
+	 * @param source
+	 *            - must be defined around all coordinates, e.g. extended
+	 * @param method
+	 * @param coordinates
+	 *            - coordinates[d][i] is coordinate d of point i
+	 * @param values
+	 *            - the values at the points
+	 */
+	public static <T extends RealType<T>> void interpolate(
+			final RandomAccessible<T> source,
+			final Method method,
+			final double[][] coordinates,
+			final double[] values) {
+
+		final int numPoints = values.length;
+
+		// chunks of points as 1d intervals
+		final List<Interval> chunks = new ArrayList<>();
+		for (int first = 0; first < numPoints; first += CHUNK_SIZE)
+			chunks.add(new FinalInterval(new long[]{first}, new long[]{Math.min(first + CHUNK_SIZE, numPoints) - 1}));
+
+		// the kernel table is shared by all tasks
+		final TableLanczosInterpolator.Factory<T> lanczos = new TableLanczosInterpolator.Factory<>();
+
+		Blocks.forEach(chunks, chunk -> {
+			final int first = (int)chunk.min(0);
+			final int last = (int)chunk.max(0);
+
+			switch (method) {
+			case NEAREST_NEIGHBOR:
+				nearestNeighbor(source.randomAccess(), coordinates, values, first, last);
+				break;
+			case NLINEAR:
+				nLinear(source.randomAccess(), coordinates, values, first, last);
+				break;
+			default:
+				interpolate(lanczos.create(source), coordinates, values, first, last);
+			}
+		});
+	}
+
+	/**
+	 * Interpolate a source at many coordinates in parallel
+	 *
+	 * @param source
+	 * @param method
+	 * @param coordinates
+	 *            - all coordinates of dimension 0, then all of dimension 1,
+	 *            ...
+	 * @param values
+	 *            - the values at the points, its length is the number of
+	 *            points
+	 */
+	public static <T extends RealType<T>> void interpolate(
+			final RandomAccessible<T> source,
+			final Method method,
+			final double[] coordinates,
+			final double[] values) {
+
+		final int numPoints = values.length;
+		final double[][] split = new double[source.numDimensions()][numPoints];
+
+		for (int d = 0; d < split.length; ++d)
+			System.arraycopy(coordinates, d * numPoints, split[d], 0, numPoints);
+
+		interpolate(source, method, split, values);
+	}
+
+	/**
+	 * Nearest neighbor interpolation of points first to last, the value is
+	 * read again only if the pixel changes
+	 *
+	 * @param access
+	 * @param coordinates
+	 * @param values
+	 * @param first
+	 * @param last
+	 */
+	protected static <T extends RealType<T>> void nearestNeighbor(
+			final RandomAccess<T> access,
+			final double[][] coordinates,
+			final double[] values,
+			final int first,
+			final int last) {
+
+		final int n = access.numDimensions();
+		final long[] pixel = new long[n];
+
+		boolean hasValue = false;
+		double value = 0;
+
+		for (int i = first; i <= last; ++i) {
+			boolean samePixel = hasValue;
+
+			for (int d = 0; d < n; ++d) {
+				final long p = Math.round(coordinates[d][i]);
+				samePixel &= p == pixel[d];
+				pixel[d] = p;
+			}
+
+			if (!samePixel) {
+				access.setPosition(pixel);
+				value = access.get().getRealDouble();
+				hasValue = true;
+			}
+
+			values[i] = value;
+		}
+	}
+
+	/**
+	 * N-linear interpolation of points first to last, the 2^n corners are read
+	 * again only if the pixel they surround changes
+	 *
+	 * @param access
+	 * @param coordinates
+	 * @param values
+	 * @param first
+	 * @param last
+	 */
+	protected static <T extends RealType<T>> void nLinear(
+			final RandomAccess<T> access,
+			final double[][] coordinates,
+			final double[] values,
+			final int first,
+			final int last) {
+
+		final int n = access.numDimensions();
+		final long[] floor = new long[n];
+		final double[] fraction = new double[n];
+
+		// corner j is at floor + bit d of j in dimension d
+		final double[] corners = new double[1 << n];
+		final double[] buffer = new double[1 << n];
+		boolean hasCorners = false;
+
+		for (int i = first; i <= last; ++i) {
+			boolean sameCorners = hasCorners;
+
+			for (int d = 0; d < n; ++d) {
+				final double f = Math.floor(coordinates[d][i]);
+				sameCorners &= (long)f == floor[d];
+				floor[d] = (long)f;
+				fraction[d] = coordinates[d][i] - f;
+			}
+
+			if (!sameCorners) {
+				access.setPosition(floor);
+
+				for (int j = 0; j < corners.length; ++j) {
+					corners[j] = access.get().getRealDouble();
+
+					// count in binary
+					for (int d = 0; d < n; ++d) {
+						if ((j & (1 << d)) == 0) {
+							access.fwd(d);
+							break;
+						}
+						access.bck(d);
+					}
+				}
+
+				hasCorners = true;
+			}
+
+			// interpolate one dimension after the other
+			System.arraycopy(corners, 0, buffer, 0, corners.length);
+			int length = corners.length;
+
+			for (int d = 0; d < n; ++d) {
+				length /= 2;
+
+				for (int k = 0; k < length; ++k)
+					buffer[k] = buffer[2 * k] + (buffer[2 * k + 1] - buffer[2 * k]) * fraction[d];
+			}
+
+			values[i] = buffer[0];
+		}
+	}
+
+	/**
+	 * Interpolate points first to last with any RealRandomAccess
+	 *
+	 * @param access
+	 * @param coordinates
+	 * @param values
+	 * @param first
+	 * @param last
+	 */
+	protected static <T extends RealType<T>> void interpolate(
+			final RealRandomAccess<T> access,
+			final double[][] coordinates,
+			final double[] values,
+			final int first,
+			final int last) {
+
+		final int n = access.numDimensions();
+
+		for (int i = first; i <= last; ++i) {
+			for (int d = 0; d < n; ++d)
+				access.setPosition(coordinates[d][i], d);
+
+			values[i] = access.get().getRealDouble();
+		}
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final RandomAccessible<UnsignedByteType> extended = Views.extendMirrorSingle(blobs);
+
+		// a finely sampled, slightly rotated grid like in a registration
+		final int width = (int)blobs.dimension(0) * 8;
+		final int height = (int)blobs.dimension(1) * 8;
+		final double[][] coordinates = new double[2][width * height];
+
+		for (int y = 0, i = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x, ++i) {
+				coordinates[0][i] = (x * Math.cos(0.1) - y * Math.sin(0.1)) / 8.0;
+				coordinates[1][i] = (x * Math.sin(0.1) + y * Math.cos(0.1)) / 8.0;
+			}
+		}
+
+		final double[] values = new double[width * height];
+
+		for (int r = 0; r < 3; ++r) {
+			long time = System.currentTimeMillis();
+
+			// one point at a time
+			interpolate(Views.interpolate(extended, new NLinearInterpolatorFactory<>()).realRandomAccess(), coordinates, values, 0, values.length - 1);
+			System.out.println("n-linear, setPosition/get: " + (System.currentTimeMillis() - time) + " ms");
+
+			for (final Method method : Method.values()) {
+				time = System.currentTimeMillis();
+				interpolate(extended, method, coordinates, values);
+				System.out.println(method + ", batch: " + (System.currentTimeMillis() - time) + " ms");
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.Type;
+import net.imglib2.view.Views;
+
+/**
+ * Helpers to split an interval into blocks and to process these blocks in
+ * parallel
+ */
+public class Blocks {
+
+	/**
+	 * Split an interval into blocks of a given size, blocks at the border are
+	 * smaller if the dimensions are not a multiple of the block size. The
+	 * blocks are returned in flat iteration order (first dimension fastest).
+	 *
+	 * @param interval
+	 *            - the interval to split
+	 * @param blockSize
+	 *            - the size of the blocks in each dimension
+	 * @return
+	 */
+	public static List<Interval> split(final Interval interval, final int[] blockSize) {
+
+		final int n = interval.numDimensions();
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+
+		final ArrayList<Interval> blocks = new ArrayList<>();
+
+		// start with the first block
+		for (int d = 0; d < n; ++d)
+			min[d] = interval.min(d);
+
+		while (true) {
+			for (int d = 0; d < n; ++d)
+				max[d] = Math.min(min[d] + blockSize[d] - 1, interval.max(d));
+
+			blocks.add(new FinalInterval(min, max));
+
+			// move to the next block, like an odometer
+			int d = 0;
+			for (; d < n; ++d) {
+				min[d] += blockSize[d];
+
+				if (min[d] <= interval.max(d))
+					break;
+				else
+					min[d] = interval.min(d);
+			}
+
+			if (d == n)
+				return blocks;
+		}
+	}
+
+	/**
+	 * Process all blocks in parallel using as many threads as there are
+	 * processors
+	 *
+	 * @param blocks
+	 * @param task
+	 *            - what to do with each block
+	 */
+	public static void forEach(final List<? extends Interval> blocks, final Consumer<Interval> task) {
+
+		forEach(blocks, task, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Process all blocks in parallel
+	 *
+	 * @param blocks
+	 * @param task
+	 *            - what to do with each block
+	 * @param numThreads
+	 *            - how many threads to use
+	 */
+	public static void forEach(final List<? extends Interval> blocks, final Consumer<Interval> task, final int numThreads) {
+
+		final ExecutorService service = Executors.newFixedThreadPool(numThreads);
+
+		try {
+			final ArrayList<Future<?>> futures = new ArrayList<>();
+
+			for (final Interval block : blocks)
+				futures.add(service.submit(() -> task.accept(block)));
+
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while processing blocks", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("failed to process block: " + e.getCause(), e.getCause());
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	/**
+	 * Copy the content of a RandomAccessible into a RandomAccessibleInterval,
+	 * the target defines the area that is copied
+	 *
+	 * @param source
+	 * @param target
+	 */
+	public static <T extends Type<T>> void copy(final RandomAccessible<? extends T> source, final RandomAccessibleInterval<T> target) {
+
+		final Cursor<T> cursor = Views.flatIterable(target).localizingCursor();
+		final RandomAccess<? extends T> ra = source.randomAccess(target);
+
+		while (cursor.hasNext()) {
+			final T t = cursor.next();
+			ra.setPosition(cursor);
+			t.set(ra.get());
+		}
+	}
+
+	/**
+	 * Copy the content of a RandomAccessible into a RandomAccessibleInterval
+	 * in parallel blocks
+	 *
+	 * @param source
+	 * @param target
+	 * @param blockSize
+	 */
+	public static <T extends Type<T>> void copy(final RandomAccessible<? extends T> source, final RandomAccessibleInterval<T> target, final int[] blockSize) {
+
+		forEach(split(target, blockSize), block -> copy(source, Views.interval(target, block)));
+	}
+
+	/**
+	 * Copy the content of a RandomAccessible into a RandomAccessibleInterval
+	 * in parallel blocks with a given number of threads
+	 *
+	 * @param source
+	 * @param target
+	 * @param blockSize
+	 * @param numThreads
+	 */
+	public static <T extends Type<T>> void copy(final RandomAccessible<? extends T> source, final RandomAccessibleInterval<T> target, final int[] blockSize, final int numThreads) {
+
+		forEach(split(target, blockSize), block -> copy(source, Views.interval(target, block)), numThreads);
+	}
+}
@@ -0,0 +1,412 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.BiConverter;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Views that replicate an image along some dimensions (like
+ * Views.addDimension, or NumPy broadcasting) and know which dimensions are
+ * replicated. Pixelwise operations on them are computed on the source only,
+ * once per unique pixel, and materializing them computes one copy and
+ * replicates it by copying blocks of memory.
+ */
+public class Broadcast {
+
+	/**
+	 * A view that replicates its source along the broadcast dimensions
+	 *
+	 * @param <T>
+	 */
+	public static class BroadcastView<T> extends AbstractWrappedInterval<Interval> implements RandomAccessibleInterval<T> {
+
+		protected final RandomAccessibleInterval<T> source;
+		protected final boolean[] broadcast;
+		protected final RandomAccessibleInterval<T> view;
+
+		/**
+		 * @param source
+		 * @param interval
+		 *            - the interval of the view, it has at least as many
+		 *            dimensions as the source
+		 * @param broadcast
+		 *            - for every dimension of the view whether it is
+		 *            replicated; all dimensions the source does not have and
+		 *            source dimensions of size 1 can be replicated
+		 */
+		public BroadcastView(final RandomAccessibleInterval<T> source, final Interval interval, final boolean[] broadcast) {
+
+			super(new FinalInterval(interval));
+
+			this.source = source;
+			this.broadcast = broadcast;
+
+			final int n = interval.numDimensions();
+			final int m = source.numDimensions();
+
+			final long[] translation = new long[m];
+			final int[] mapping = new int[m];
+			final boolean[] zero = new boolean[m];
+
+			for (int d = 0; d < m; ++d) {
+				if (broadcast[d]) {
+					// a source dimension of size 1 stays at its position
+					zero[d] = true;
+					translation[d] = source.min(d);
+				} else {
+					mapping[d] = d;
+				}
+			}
+
+			final MixedTransform t = new MixedTransform(n, m);
+			t.setTranslation(translation);
+			t.setComponentMapping(mapping);
+			t.setComponentZero(zero);
+
+			this.view = Views.interval(new MixedTransformView<>(source, t), interval);
+		}
+
+		/**
+		 * @return the image that is replicated
+		 */
+		public RandomAccessibleInterval<T> getSource() {
+
+			return source;
+		}
+
+		/**
+		 * @return for every dimension whether it is replicated
+		 */
+		public boolean[] getBroadcast() {
+
+			return broadcast;
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess() {
+
+			return view.randomAccess();
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess(final Interval interval) {
+
+			return view.randomAccess(interval);
+		}
+	}
+
+	/**
+	 * Replicate an image along new dimensions, like Views.addDimension
+	 *
+	 * @param img
+	 * @param min
+	 *            - the min of the new dimensions
+	 * @param max
+	 *            - the max of the new dimensions
+	 * @return
+	 */
+	public static <T> BroadcastView<T> addDimensions(final RandomAccessibleInterval<T> img, final long[] min, final long[] max) {
+
+		final int m = img.numDimensions();
+		final int n = m + min.length;
+
+		final long[] viewMin = new long[n];
+		final long[] viewMax = new long[n];
+		final boolean[] broadcast = new boolean[n];
+
+		for (int d = 0; d < n; ++d) {
+			viewMin[d] = d < m ? img.min(d) : min[d - m];
+			viewMax[d] = d < m ? img.max(d) : max[d - m];
+			broadcast[d] = d >= m;
+		}
+
+		return new BroadcastView<>(img, new FinalInterval(viewMin, viewMax), broadcast);
+	}
+
+	/**
+	 * The interval two images are broadcast to, following NumPy rules with
+	 * dimensions aligned at the first dimension: a dimension that one image
+	 * does not have or where it has size 1 is replicated to the size of the
+	 * other image
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static Interval broadcastInterval(final Interval a, final Interval b) {
+
+		final int n = Math.max(a.numDimensions(), b.numDimensions());
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+
+		for (int d = 0; d < n; ++d) {
+			final boolean aReplicates = d >= a.numDimensions() || a.dimension(d) == 1;
+			final boolean bReplicates = d >= b.numDimensions() || b.dimension(d) == 1;
+
+			final Interval other = aReplicates ? b : a;
+
+			if (aReplicates && bReplicates) {
+				min[d] = d < a.numDimensions() ? a.min(d) : d < b.numDimensions() ? b.min(d) : 0;
+				max[d] = min[d];
+			} else if (!aReplicates && !bReplicates && (a.min(d) != b.min(d) || a.max(d) != b.max(d))) {
+				throw new IllegalArgumentException("cannot broadcast dimension " + d + ": " + a.dimension(d) + " != " + b.dimension(d));
+			} else {
+				min[d] = other.min(d);
+				max[d] = other.max(d);
+			}
+		}
+
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Broadcast an image to a larger interval
+	 *
+	 * @param img
+	 * @param interval
+	 *            - see {@link #broadcastInterval}
+	 * @return the image itself if nothing needs to be replicated
+	 */
+	public static <T> RandomAccessibleInterval<T> broadcast(final RandomAccessibleInterval<T> img, final Interval interval) {
+
+		final int n = interval.numDimensions();
+		final boolean[] broadcast = new boolean[n];
+
+		boolean replicates = false;
+
+		for (int d = 0; d < n; ++d) {
+			broadcast[d] = d >= img.numDimensions() || (img.dimension(d) == 1 && interval.dimension(d) > 1);
+			replicates |= broadcast[d];
+		}
+
+		return replicates ? new BroadcastView<>(img, interval, broadcast) : img;
+	}
+
+	/**
+	 * Convert a broadcast view pixelwise, the converter is applied to the
+	 * source before replicating, so it runs once per unique pixel
+	 *
+	 * @param img
+	 * @param converter
+	 * @param type
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <A, B> RandomAccessibleInterval<B> convert(
+			final RandomAccessibleInterval<A> img,
+			final Converter<? super A, ? super B> converter,
+			final B type) {
+
+		if (img instanceof BroadcastView) {
+			final BroadcastView<A> view = (BroadcastView<A>)img;
+
+			return new BroadcastView<>(Converters.convert(view.getSource(), converter, type), view, view.getBroadcast());
+		}
+
+		return Converters.convert(img, converter, type);
+	}
+
+	/**
+	 * Combine two images of different dimensionality pixelwise, NumPy-style
+	 * (see {@link #broadcastInterval}). If both images replicate along the
+	 * same dimensions, the converter runs on their sources only.
+	 *
+	 * @param a
+	 * @param b
+	 * @param converter
+	 * @param type
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <A, B, C> RandomAccessibleInterval<C> convert(
+			final RandomAccessibleInterval<A> a,
+			final RandomAccessibleInterval<B> b,
+			final BiConverter<? super A, ? super B, ? super C> converter,
+			final C type) {
+
+		final Interval interval = broadcastInterval(a, b);
+
+		final RandomAccessibleInterval<A> broadcastA = broadcast(a, interval);
+		final RandomAccessibleInterval<B> broadcastB = broadcast(b, interval);
+
+		if (broadcastA instanceof BroadcastView && broadcastB instanceof BroadcastView) {
+			final BroadcastView<A> viewA = (BroadcastView<A>)broadcastA;
+			final BroadcastView<B> viewB = (BroadcastView<B>)broadcastB;
+
+			final RandomAccessibleInterval<A> sourceA = viewA.getSource();
+			final RandomAccessibleInterval<B> sourceB = viewB.getSource();
+
+			if (Arrays.equals(viewA.getBroadcast(), viewB.getBroadcast()) &&
+					sourceA.numDimensions() == sourceB.numDimensions() &&
+					Intervals.equals(sourceA, sourceB))
+				return new BroadcastView<>(Converters.convert(sourceA, sourceB, converter, type), interval, viewA.getBroadcast());
+		}
+
+		return Converters.convert(broadcastA, broadcastB, converter, type);
+	}
+
+	/**
+	 * Materialize an image into an ArrayImg in parallel. Broadcast views are
+	 * computed once for the first position of all replicated dimensions and
+	 * then replicated with System.arraycopy.
+	 *
+	 * @param img
+	 * @param numThreads
+	 * @return the materialized image, zero-min
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>> ArrayImg<T, ?> materialize(final RandomAccessibleInterval<T> img, final int numThreads) {
+
+		final int n = img.numDimensions();
+		final T type = Util.getTypeFromInterval(img).createVariable();
+		final ArrayImg<T, ?> target = new ArrayImgFactory<>(type).create(img);
+
+		final RandomAccessibleInterval<T> zeroMin = Views.zeroMin(img);
+
+		final int[] blockSize = new int[n];
+		for (int d = 0; d < n; ++d)
+			blockSize[d] = d < 2 ? 256 : 1;
+
+		if (!(img instanceof BroadcastView) || type.getEntitiesPerPixel().getRatio() != 1) {
+			Blocks.copy(zeroMin, target, blockSize, numThreads);
+			return target;
+		}
+
+		final boolean[] broadcast = ((BroadcastView<T>)img).getBroadcast();
+
+		// compute the unique pixels only
+		final long[] seedMax = Intervals.maxAsLongArray(target);
+		for (int d = 0; d < n; ++d)
+			if (broadcast[d])
+				seedMax[d] = 0;
+
+		final Interval seed = new FinalInterval(new long[n], seedMax);
+		Blocks.copy(zeroMin, Views.interval(target, seed), blockSize, numThreads);
+
+		// replicate along one broadcast dimension after the other
+		final Object array = ((ArrayDataAccess<?>)target.update(null)).getCurrentStorageArray();
+
+		for (int d = 0; d < n; ++d) {
+			if (!broadcast[d] || img.dimension(d) == 1)
+				continue;
+
+			// the slice at position 0 of d is contiguous in every outer block
+			long stride = 1;
+			for (int e = 0; e < d; ++e)
+				stride *= img.dimension(e);
+
+			final long size = img.dimension(d);
+			final long blockLength = stride * size;
+
+			long numOuterBlocks = 1;
+			for (int e = d + 1; e < n; ++e)
+				numOuterBlocks *= img.dimension(e);
+
+			for (long o = 0; o < numOuterBlocks; ++o) {
+				// outer blocks that are not filled yet are replicated later
+				boolean isFilled = true;
+				long r = o;
+
+				for (int e = d + 1; e < n; ++e) {
+					isFilled &= !broadcast[e] || r % img.dimension(e) == 0;
+					r /= img.dimension(e);
+				}
+
+				if (!isFilled)
+					continue;
+
+				final int offset = (int)(o * blockLength);
+
+				for (long j = 1; j < size; ++j)
+					System.arraycopy(array, offset, array, (int)(offset + j * stride), (int)stride);
+			}
+		}
+
+		return target;
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// the 50 copies of Task7_Views.addRemoveDimensions
+		final BroadcastView<UnsignedByteType> replicated = addDimensions(blobs, new long[]{0}, new long[]{49});
+
+		// an expensive pixelwise operation, computed once per unique pixel
+		final RandomAccessibleInterval<FloatType> converted = convert(
+				replicated,
+				(i, o) -> {
+					double v = i.getRealDouble();
+					for (int k = 0; k < 100; ++k)
+						v = Math.sqrt(v * v + k);
+					o.setReal(v);
+				},
+				new FloatType());
+
+		for (int i = 0; i < 3; ++i) {
+			long time = System.currentTimeMillis();
+
+			final RandomAccessibleInterval<FloatType> naive = Converters.convert(
+					Views.addDimension(blobs, 0, 49),
+					(a, o) -> {
+						double v = a.getRealDouble();
+						for (int k = 0; k < 100; ++k)
+							v = Math.sqrt(v * v + k);
+						o.setReal(v);
+					},
+					new FloatType());
+
+			Blocks.copy(Views.zeroMin(naive), new ArrayImgFactory<>(new FloatType()).create(naive), new int[]{256, 256, 1});
+			System.out.println("addDimension and convert: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			materialize(converted, numThreads);
+			System.out.println("broadcast: " + (System.currentTimeMillis() - time) + " ms");
+		}
+
+		// both inputs replicate along the same dimension, so the difference
+		// is computed for one plane only
+		final RandomAccessibleInterval<FloatType> smoothed = ComplexTask3_MeanFilter.meanFilter3(blobs, new FloatType());
+
+		ImageJFunctions.show(materialize(convert(replicated, smoothed, (a, b, o) -> o.setReal(a.getRealDouble() - b.getRealDouble()), new FloatType()), numThreads))
+				.setTitle("blobs minus smoothed, replicated");
+
+		// broadcasting in a bi-converter: subtract the mean image of a stack
+		// (2d) from every plane (3d)
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final RandomAccessibleInterval<FloatType> mean = ComplexTask3_MeanFilter.meanFilter3(Views.hyperSlice(img, 2, img.dimension(2) / 2), new FloatType());
+
+		ImageJFunctions.show(materialize(convert(img, mean, (a, b, o) -> o.setReal(a.getRealDouble() - b.getRealDouble()), new FloatType()), numThreads))
+				.setTitle("plane minus smoothed central plane");
+	}
+}
@@ -0,0 +1,184 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import ij.IJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Turn virtual RandomAccessibleIntervals (converters, views, functions) into
+ * cached CellImgs whose cells are computed on first access, so that repeated
+ * access (e.g. browsing in BigDataViewer) does not compute the same pixels
+ * over and over again
+ */
+public class CachedViews {
+
+	/**
+	 * Cache a virtual RandomAccessibleInterval in cells that are computed on
+	 * first access and held with soft references (evicted when memory runs
+	 * low)
+	 *
+	 * @param source
+	 * @param cellDimensions
+	 * @return
+	 */
+	public static <T extends NativeType<T>> RandomAccessibleInterval<T> cache(
+			final RandomAccessibleInterval<T> source,
+			final int... cellDimensions) {
+
+		return cache(source, cellDimensions, CacheType.SOFTREF, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Cache a virtual RandomAccessibleInterval in cells that are computed on
+	 * first access. The cells are backed by volatile accesses, so the result
+	 * can be shown asynchronously in BigDataViewer using
+	 * {@link VolatileViews#wrapAsVolatile}.
+	 *
+	 * @param source
+	 *            - the virtual input
+	 * @param cellDimensions
+	 *            - the size of the cells
+	 * @param cacheType
+	 *            - SOFTREF (evicted when memory runs low) or BOUNDED (LRU)
+	 * @param maxCacheSize
+	 *            - the maximal number of cells for a BOUNDED cache
+	 * @return a cached image with the same interval as the source
+	 */
+	public static <T extends NativeType<T>> RandomAccessibleInterval<T> cache(
+			final RandomAccessibleInterval<T> source,
+			final int[] cellDimensions,
+			final CacheType cacheType,
+			final long maxCacheSize) {
+
+		final CachedCellImg<T, ?> img = cachedCellImg(Views.zeroMin(source), cellDimensions, cacheType, maxCacheSize);
+
+		return Views.isZeroMin(source) ? img : Views.translate(img, Intervals.minAsLongArray(source));
+	}
+
+	/**
+	 * Create the cached CellImg for a zero-min source
+	 *
+	 * @param source
+	 * @param cellDimensions
+	 * @param cacheType
+	 * @param maxCacheSize
+	 * @return
+	 */
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> cachedCellImg(
+			final RandomAccessibleInterval<T> source,
+			final int[] cellDimensions,
+			final CacheType cacheType,
+			final long maxCacheSize) {
+
+		// every cell computes its content from the virtual source
+		final CellLoader<T> loader = cell -> Blocks.copy(source, cell);
+
+		return cachedCellImg(
+				Intervals.dimensionsAsLongArray(source),
+				Util.getTypeFromInterval(source).createVariable(),
+				loader,
+				cellDimensions,
+				cacheType,
+				maxCacheSize);
+	}
+
+	/**
+	 * Create a cached CellImg with volatile accesses whose cells are computed
+	 * by a CellLoader on first access
+	 *
+	 * @param dimensions
+	 * @param type
+	 * @param loader
+	 *            - computes the content of a cell
+	 * @param cellDimensions
+	 * @param cacheType
+	 * @param maxCacheSize
+	 * @return
+	 */
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> cachedCellImg(
+			final long[] dimensions,
+			final T type,
+			final CellLoader<T> loader,
+			final int[] cellDimensions,
+			final CacheType cacheType,
+			final long maxCacheSize) {
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions(cellDimensions)
+				.cacheType(cacheType)
+				.maxCacheSize(maxCacheSize)
+				.volatileAccesses(true);
+
+		// the factory is not generic, its CachedCellImg is created unchecked
+		@SuppressWarnings("unchecked")
+		final CachedCellImg<T, ?> img = new ReadOnlyCachedCellImgFactory(options).create(dimensions, type, loader);
+
+		return img;
+	}
+
+	/**
+	 * Show a virtual RandomAccessibleInterval in BigDataViewer through a cache.
+	 * Cells are computed by a pool of fetcher threads when they are first
+	 * requested by the viewer, and are shown as not-yet-loaded until they are
+	 * ready, so rendering never blocks on the computation.
+	 *
+	 * @param source
+	 *            - the virtual input
+	 * @param name
+	 * @param options
+	 * @param numFetcherThreads
+	 *            - how many threads compute cells
+	 * @param cellDimensions
+	 * @return
+	 */
+	public static <T extends NativeType<T>> BdvStackSource<?> show(
+			final RandomAccessibleInterval<T> source,
+			final String name,
+			final BdvOptions options,
+			final int numFetcherThreads,
+			final int... cellDimensions) {
+
+		final RandomAccessibleInterval<T> cached = cache(source, cellDimensions);
+
+		return BdvFunctions.show(VolatileViews.wrapAsVolatile(cached, new SharedQueue(numFetcherThreads)), name, options);
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		BdvStackSource<?> bdv;
+		bdv = BdvFunctions.show(img, "input");
+
+		// the gradient magnitude of ComplexTask2_Gradient is computed once per
+		// cell instead of on every repaint
+		bdv = show(
+				ComplexTask2_Gradient.gradientMagnitude(img, new FloatType()),
+				"gradient (cached)",
+				new BdvOptions().addTo(bdv),
+				Runtime.getRuntime().availableProcessors(),
+				32, 32, 32);
+
+		bdv.setColor(new ARGBType(ARGBType.rgba(0, 255, 0, 0)));
+		bdv.setDisplayRange(0, 255);
+	}
+}
@@ -0,0 +1,495 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Extract regions of interest into new images that are independent of the
+ * source, unlike Views.interval. Crops are copied in parallel, cell by cell,
+ * or created copy-on-write: the cells of a CellImg are shared with the crop
+ * until a pixel of the crop is written, then only that cell is copied.
+ * Copy-on-write protects the source from the crop, but not the other way
+ * around (see {@link #cropCopyOnWrite}).
+ */
+public class Crops {
+
+	/**
+	 * Copy a region of interest into a new CellImg, the cells are copied in
+	 * parallel
+	 *
+	 * @param source
+	 * @param roi
+	 * @param cellDimensions
+	 * @param numThreads
+	 * @return the crop, zero-min
+	 */
+	public static <T extends NativeType<T>> Img<T> crop(
+			final RandomAccessibleInterval<T> source,
+			final Interval roi,
+			final int[] cellDimensions,
+			final int numThreads) {
+
+		final Img<T> crop = new CellImgFactory<>(Util.getTypeFromInterval(source).createVariable(), cellDimensions).create(roi);
+		final RandomAccessibleInterval<T> region = Views.zeroMin(Views.interval(source, roi));
+
+		Blocks.forEach(Blocks.split(crop, cellDimensions), cell -> Blocks.copy(region, Views.interval(crop, cell)), numThreads);
+
+		return crop;
+	}
+
+	/**
+	 * Copy many (small) regions of interest in parallel, one task per region
+	 *
+	 * @param source
+	 * @param rois
+	 * @param numThreads
+	 * @return the crops as ArrayImgs, zero-min
+	 */
+	public static <T extends NativeType<T>> List<Img<T>> crops(
+			final RandomAccessibleInterval<T> source,
+			final List<? extends Interval> rois,
+			final int numThreads) {
+
+		final T type = Util.getTypeFromInterval(source).createVariable();
+
+		final ExecutorService service = Executors.newFixedThreadPool(numThreads);
+		final ArrayList<Future<Img<T>>> futures = new ArrayList<>();
+
+		for (final Interval roi : rois)
+			futures.add(service.submit(() -> {
+				final Img<T> crop = new ArrayImgFactory<>(type).create(roi);
+				Blocks.copy(Views.zeroMin(Views.interval(source, roi)), crop);
+
+				return crop;
+			}));
+
+		final List<Img<T>> crops = new ArrayList<>();
+
+		try {
+			for (final Future<Img<T>> future : futures)
+				crops.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("failed to crop: " + e, e);
+		} finally {
+			service.shutdownNow();
+		}
+
+		return crops;
+	}
+
+	/**
+	 * Create a copy-on-write crop of a CellImg. If the region of interest does
+	 * not start at a cell border or the pixels are not stored in one primitive
+	 * array element each, the crop is copied instead.
+	 *
+	 * Limitations of a copy-on-write crop:
+	 * <ul>
+	 * <li>Writing to the crop never changes the source, but writing to the
+	 * source changes every cell of the crop that has not been written to yet.
+	 * Do not modify the source while the crop is used, or use
+	 * {@link #crop} instead.</li>
+	 * <li>The crop is a LazyCellImg, so factory() and copy() are not
+	 * supported. Copy it with {@link #crop} to get an independent Img.</li>
+	 * </ul>
+	 *
+	 * @param source
+	 * @param roi
+	 * @param numThreads
+	 *            - used if the crop has to be copied
+	 * @return the crop, zero-min
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T>> Img<T> cropCopyOnWrite(
+			final RandomAccessibleInterval<T> source,
+			final Interval roi,
+			final int numThreads) {
+
+		final int n = source.numDimensions();
+		final T type = Util.getTypeFromInterval(source).createVariable();
+
+		if (!(source instanceof AbstractCellImg)) {
+			final int[] cellDimensions = new int[n];
+			for (int d = 0; d < n; ++d)
+				cellDimensions[d] = (int)Math.min(64, roi.dimension(d));
+
+			return crop(source, roi, cellDimensions, numThreads);
+		}
+
+		final AbstractCellImg<T, ?, ?, ?> cellImg = (AbstractCellImg<T, ?, ?, ?>)source;
+		final CellGrid sourceGrid = cellImg.getCellGrid();
+
+		final int[] cellDimensions = new int[n];
+		sourceGrid.cellDimensions(cellDimensions);
+
+		boolean isAligned = type.getEntitiesPerPixel().getRatio() == 1;
+		for (int d = 0; d < n; ++d)
+			isAligned &= roi.min(d) % cellDimensions[d] == 0;
+
+		if (!isAligned)
+			return crop(source, roi, cellDimensions, numThreads);
+
+		final CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(roi), cellDimensions);
+		final AtomicReferenceArray<Cell<?>> cells = new AtomicReferenceArray<>((int)Intervals.numElements(grid.getGridDimensions()));
+
+		// LazyCellImg asks for a cell on every access, so cells are created once
+		final LazyCellImg.Get<Cell<?>> get = index -> {
+			Cell<?> cell = cells.get((int)index);
+
+			if (cell == null) {
+				cell = createCell(cellImg, grid, roi, index);
+
+				if (!cells.compareAndSet((int)index, null, cell))
+					cell = cells.get((int)index);
+			}
+
+			return cell;
+		};
+
+		return new LazyCellImg(grid, type, get);
+	}
+
+	/**
+	 * Create a cell of a copy-on-write crop. A cell that covers a full source
+	 * cell shares its array, a cell at the border of the crop that covers only
+	 * a part of a source cell gets a copy of that part.
+	 *
+	 * @param source
+	 * @param grid
+	 *            - the cell grid of the crop
+	 * @param roi
+	 * @param index
+	 *            - the index of the cell in the grid of the crop
+	 * @return
+	 */
+	protected static Cell<?> createCell(
+			final AbstractCellImg<?, ?, ?, ?> source,
+			final CellGrid grid,
+			final Interval roi,
+			final long index) {
+
+		final int n = grid.numDimensions();
+
+		final long[] cellMin = new long[n];
+		final int[] cellDims = new int[n];
+		grid.getCellDimensions(index, cellMin, cellDims);
+
+		final long[] sourceCellPosition = new long[n];
+		for (int d = 0; d < n; ++d)
+			sourceCellPosition[d] = (roi.min(d) + cellMin[d]) / source.getCellGrid().cellDimension(d);
+
+		final RandomAccess<? extends Cell<?>> cellAccess = source.getCells().randomAccess();
+		cellAccess.setPosition(sourceCellPosition);
+
+		final Cell<?> sourceCell = cellAccess.get();
+		final Object sourceArray = ((ArrayDataAccess<?>)sourceCell.getData()).getCurrentStorageArray();
+
+		final int[] sourceCellDims = new int[n];
+		sourceCell.dimensions(sourceCellDims);
+
+		boolean isFullCell = true;
+		for (int d = 0; d < n; ++d)
+			isFullCell &= sourceCellDims[d] == cellDims[d];
+
+		if (isFullCell)
+			return new Cell<>(cellDims, cellMin, copyOnWrite(sourceArray, false));
+
+		// copy the rows of the part of the source cell
+		final int size = (int)Intervals.numElements(cellDims);
+		final Object part = Array.newInstance(sourceArray.getClass().getComponentType(), size);
+
+		final long[] position = new long[n];
+
+		for (int offset = 0; offset < size; offset += cellDims[0]) {
+			int sourceOffset = 0;
+			int stride = 1;
+
+			for (int d = 0; d < n; ++d) {
+				sourceOffset += position[d] * stride;
+				stride *= sourceCellDims[d];
+			}
+
+			System.arraycopy(sourceArray, sourceOffset, part, offset, cellDims[0]);
+
+			for (int d = 1; d < n; ++d) {
+				if (++position[d] < cellDims[d])
+					break;
+				position[d] = 0;
+			}
+		}
+
+		return new Cell<>(cellDims, cellMin, copyOnWrite(part, true));
+	}
+
+	/**
+	 * @param array
+	 * @param isPrivate
+	 *            - if the array belongs to the crop already
+	 * @return an access for the array that copies it on the first write
+	 */
+	protected static CopyOnWrite copyOnWrite(final Object array, final boolean isPrivate) {
+
+		if (array instanceof byte[])
+			return new CopyOnWriteByteAccess(array, isPrivate);
+		else if (array instanceof short[])
+			return new CopyOnWriteShortAccess(array, isPrivate);
+		else if (array instanceof int[])
+			return new CopyOnWriteIntAccess(array, isPrivate);
+		else if (array instanceof long[])
+			return new CopyOnWriteLongAccess(array, isPrivate);
+		else if (array instanceof float[])
+			return new CopyOnWriteFloatAccess(array, isPrivate);
+		else if (array instanceof double[])
+			return new CopyOnWriteDoubleAccess(array, isPrivate);
+		else
+			throw new IllegalArgumentException("unsupported array: " + array.getClass().getName());
+	}
+
+	/**
+	 * Reads from a shared primitive array until the first write, which copies
+	 * the array
+	 */
+	protected abstract static class CopyOnWrite {
+
+		protected final Object source;
+		protected volatile Object copy;
+
+		public CopyOnWrite(final Object source, final boolean isPrivate) {
+
+			this.source = source;
+			this.copy = isPrivate ? source : null;
+		}
+
+		protected Object read() {
+
+			final Object c = copy;
+			return c == null ? source : c;
+		}
+
+		protected Object write() {
+
+			Object c = copy;
+
+			if (c == null) {
+				synchronized (this) {
+					if (copy == null) {
+						final int length = Array.getLength(source);
+						final Object array = Array.newInstance(source.getClass().getComponentType(), length);
+
+						System.arraycopy(source, 0, array, 0, length);
+						copy = array;
+					}
+
+					c = copy;
+				}
+			}
+
+			return c;
+		}
+
+		/**
+		 * @return whether the array was copied
+		 */
+		public boolean isCopied() {
+
+			return copy != null && copy != source;
+		}
+	}
+
+	protected static class CopyOnWriteByteAccess extends CopyOnWrite implements ByteAccess {
+
+		public CopyOnWriteByteAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public byte getValue(final int index) {
+
+			return ((byte[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final byte value) {
+
+			((byte[])write())[index] = value;
+		}
+	}
+
+	protected static class CopyOnWriteShortAccess extends CopyOnWrite implements ShortAccess {
+
+		public CopyOnWriteShortAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public short getValue(final int index) {
+
+			return ((short[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final short value) {
+
+			((short[])write())[index] = value;
+		}
+	}
+
+	protected static class CopyOnWriteIntAccess extends CopyOnWrite implements IntAccess {
+
+		public CopyOnWriteIntAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public int getValue(final int index) {
+
+			return ((int[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final int value) {
+
+			((int[])write())[index] = value;
+		}
+	}
+
+	protected static class CopyOnWriteLongAccess extends CopyOnWrite implements LongAccess {
+
+		public CopyOnWriteLongAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public long getValue(final int index) {
+
+			return ((long[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final long value) {
+
+			((long[])write())[index] = value;
+		}
+	}
+
+	protected static class CopyOnWriteFloatAccess extends CopyOnWrite implements FloatAccess {
+
+		public CopyOnWriteFloatAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public float getValue(final int index) {
+
+			return ((float[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final float value) {
+
+			((float[])write())[index] = value;
+		}
+	}
+
+	protected static class CopyOnWriteDoubleAccess extends CopyOnWrite implements DoubleAccess {
+
+		public CopyOnWriteDoubleAccess(final Object source, final boolean isPrivate) {
+
+			super(source, isPrivate);
+		}
+
+		@Override
+		public double getValue(final int index) {
+
+			return ((double[])read())[index];
+		}
+
+		@Override
+		public void setValue(final int index, final double value) {
+
+			((double[])write())[index] = value;
+		}
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> imp = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final Img<UnsignedByteType> img = new CellImgFactory<>(new UnsignedByteType(), 32).create(imp);
+		Blocks.copy(imp, img);
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// thousands of random training rois
+		final Random rnd = new Random(42);
+		final List<Interval> rois = new ArrayList<>();
+
+		for (int i = 0; i < 5000; ++i) {
+			final long[] min = new long[img.numDimensions()];
+			final long[] max = new long[img.numDimensions()];
+
+			for (int d = 0; d < min.length; ++d) {
+				min[d] = rnd.nextInt((int)img.dimension(d) - 16);
+				max[d] = min[d] + 15;
+			}
+
+			rois.add(new FinalInterval(min, max));
+		}
+
+		long time = System.currentTimeMillis();
+		crops(img, rois, numThreads);
+		System.out.println("copied " + rois.size() + " rois in " + (System.currentTimeMillis() - time) + " ms");
+
+		// a cell-aligned crop shares the cells of the source
+		final Interval roi = Intervals.createMinMax(32, 32, 0, 159, 159, img.max(2));
+		final Img<UnsignedByteType> crop = cropCopyOnWrite(img, roi, numThreads);
+
+		// writing to the crop does not change the source
+		final Cursor<UnsignedByteType> cursor = Views.flatIterable(Views.interval(crop, Intervals.createMinMax(0, 0, 0, 31, 31, 0))).cursor();
+		while (cursor.hasNext())
+			cursor.next().set(255);
+
+		final RandomAccess<UnsignedByteType> ra = img.randomAccess();
+		ra.setPosition(new long[]{32, 32, 0});
+
+		System.out.println("crop: " + crop.firstElement() + ", source: " + ra.get());
+	}
+}
@@ -0,0 +1,458 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import bdv.viewer.DisplayMode;
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Cubic B-spline interpolation. The B-spline coefficients of an image are
+ * computed once with a recursive filter along every dimension (in parallel
+ * over the lines) and cached for as long as the image exists, or saved to a
+ * file with RawImgIO, so that many transformations of the same image only pay
+ * for the interpolation itself.
+ */
+public class CubicBSpline {
+
+	// the pole of the cubic B-spline prefilter
+	public static final double POLE = Math.sqrt(3) - 2;
+
+	// source image > coefficients, as long as the source image is referenced
+	protected static final Map<RandomAccessibleInterval<?>, Img<FloatType>> cache = new WeakHashMap<>();
+
+	/**
+	 * Evaluates the cubic B-spline at real positions from a coefficient image,
+	 * the RandomAccessible it is applied to must contain the coefficients (see
+	 * {@link #coefficients}), not the samples
+	 */
+	static class CoefficientInterpolatorFactory implements InterpolatorFactory<FloatType, RandomAccessible<FloatType>> {
+
+		@Override
+		public CubicBSplineInterpolator create(final RandomAccessible<FloatType> coefficients) {
+
+			return new CubicBSplineInterpolator(coefficients.randomAccess());
+		}
+
+		@Override
+		public CubicBSplineInterpolator create(final RandomAccessible<FloatType> coefficients, final RealInterval interval) {
+
+			return create(coefficients);
+		}
+	}
+
+	/**
+	 * Cubic B-spline interpolation of an image, the coefficients are computed
+	 * once per image
+	 *
+	 * @param img
+	 * @param numThreads
+	 * @return
+	 */
+	public static <T extends RealType<T>> RealRandomAccessible<FloatType> interpolate(final RandomAccessibleInterval<T> img, final int numThreads) {
+
+		return interpolateCoefficients(coefficients(img, numThreads), img);
+	}
+
+	/**
+	 * Cubic B-spline interpolation of an image, the coefficients are read
+	 * from a file if it was saved for the same image, otherwise they are
+	 * taken from the cache or computed, and saved to it. The checksum of the image is saved next to
+	 * the file (path + ".key") to detect stale coefficients.
+	 *
+	 * @param img
+	 * @param path
+	 * @param numThreads
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T extends RealType<T>> RealRandomAccessible<FloatType> interpolate(
+			final RandomAccessibleInterval<T> img,
+			final String path,
+			final int numThreads) throws IOException {
+
+		Img<FloatType> coefficients;
+
+		synchronized (cache) {
+			coefficients = cache.get(img);
+		}
+
+		final Path keyPath = Paths.get(path + ".key");
+		final String key = Long.toHexString(checksum(img));
+
+		final boolean isSaved = new File(path).exists() && Files.exists(keyPath) &&
+				key.equals(new String(Files.readAllBytes(keyPath), StandardCharsets.UTF_8).trim());
+
+		if (coefficients == null && isSaved) {
+			coefficients = RawImgIO.load(path, new FloatType());
+
+			if (!Arrays.equals(Intervals.dimensionsAsLongArray(coefficients), Intervals.dimensionsAsLongArray(img)))
+				throw new IOException(path + " does not contain coefficients of the size of the image");
+
+			synchronized (cache) {
+				cache.put(img, coefficients);
+			}
+		}
+
+		// also cached coefficients are saved if the file is missing or stale
+		if (coefficients == null)
+			coefficients = coefficients(img, numThreads);
+
+		if (!isSaved) {
+			// the key last, so an interrupted save is not trusted later
+			Files.deleteIfExists(keyPath);
+			RawImgIO.save(coefficients, path);
+			Files.write(keyPath, key.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return interpolateCoefficients(coefficients, img);
+	}
+
+	/**
+	 * A checksum of the dimensions and pixels of an image, identifies the image
+	 * a coefficient file was computed from
+	 *
+	 * @param img
+	 * @return
+	 */
+	public static <T extends RealType<T>> long checksum(final RandomAccessibleInterval<T> img) {
+
+		long checksum = 1;
+
+		for (int d = 0; d < img.numDimensions(); ++d)
+			checksum = 31 * checksum + img.dimension(d);
+
+		for (final T t : Views.flatIterable(img))
+			checksum = 31 * checksum + Double.doubleToLongBits(t.getRealDouble());
+
+		return checksum;
+	}
+
+	/**
+	 * @param coefficients
+	 *            - zero-min
+	 * @param img
+	 *            - the image they belong to
+	 * @return
+	 */
+	protected static RealRandomAccessible<FloatType> interpolateCoefficients(final Img<FloatType> coefficients, final Interval img) {
+
+		// the prefilter assumes mirrored boundaries
+		return Views.interpolate(
+				Views.extendMirrorSingle(Views.translate(coefficients, Intervals.minAsLongArray(img))),
+				new CoefficientInterpolatorFactory());
+	}
+
+	/**
+	 * The cached B-spline coefficients of an image, they are computed if the
+	 * image was not seen before. Views are different images every time they
+	 * are created.
+	 *
+	 * @param img
+	 * @param numThreads
+	 * @return the coefficients, zero-min
+	 */
+	public static <T extends RealType<T>> Img<FloatType> coefficients(final RandomAccessibleInterval<T> img, final int numThreads) {
+
+		synchronized (cache) {
+			final Img<FloatType> cached = cache.get(img);
+
+			if (cached != null)
+				return cached;
+		}
+
+		final Img<FloatType> coefficients = computeCoefficients(img, numThreads);
+
+		synchronized (cache) {
+			cache.put(img, coefficients);
+		}
+
+		return coefficients;
+	}
+
+	/**
+	 * Compute the B-spline coefficients of an image
+	 *
+	 * @param img
+	 * @param numThreads
+	 * @return the coefficients, zero-min
+	 */
+	public static <T extends RealType<T>> ArrayImg<FloatType, FloatArray> computeCoefficients(
+			final RandomAccessibleInterval<T> img,
+			final int numThreads) {
+
+		final int n = img.numDimensions();
+		final long[] dimensions = Intervals.dimensionsAsLongArray(img);
+
+		final ArrayImg<FloatType, FloatArray> coefficients = ArrayImgs.floats(dimensions);
+
+		final int[] blockSize = new int[n];
+		for (int d = 0; d < n; ++d)
+			blockSize[d] = d < 2 ? 256 : 1;
+
+		Blocks.copy(
+				Converters.convert(Views.zeroMin(img), (i, o) -> o.setReal(i.getRealDouble()), new FloatType()),
+				coefficients,
+				blockSize);
+
+		final float[] data = coefficients.update(null).getCurrentStorageArray();
+
+		int stride = 1;
+
+		for (int d = 0; d < n; ++d) {
+			final int size = (int)dimensions[d];
+			final int lineStride = stride;
+			final int numLines = data.length / size;
+
+			if (size > 1) {
+				// the lines along d in chunks as 1d intervals
+				final int linesPerTask = Math.max(1, (numLines + 4 * numThreads - 1) / (4 * numThreads));
+
+				final List<Interval> chunks = new ArrayList<>();
+				for (int first = 0; first < numLines; first += linesPerTask)
+					chunks.add(new FinalInterval(new long[]{first}, new long[]{Math.min(first + linesPerTask, numLines) - 1}));
+
+				Blocks.forEach(chunks, chunk -> {
+					final double[] line = new double[size];
+
+					for (long l = chunk.min(0); l <= chunk.max(0); ++l) {
+						// the first element of line l
+						final int offset = (int)(l / lineStride * lineStride * size + l % lineStride);
+
+						for (int k = 0; k < size; ++k)
+							line[k] = data[offset + k * lineStride];
+
+						prefilter(line);
+
+						for (int k = 0; k < size; ++k)
+							data[offset + k * lineStride] = (float)line[k];
+					}
+				}, numThreads);
+			}
+
+			stride *= size;
+		}
+
+		return coefficients;
+	}
+
+	/**
+	 * Turn the samples of a line into cubic B-spline coefficients with a
+	 * causal and an anti-causal recursive filter, assuming mirrored
+	 * boundaries (Unser, 1999)
+	 *
+	 * @param line
+	 *            - at least 2 samples
+	 */
+	public static void prefilter(final double[] line) {
+
+		final int size = line.length;
+		final double z = POLE;
+
+		// gain (1 - z)(1 - 1/z)
+		for (int k = 0; k < size; ++k)
+			line[k] *= 6;
+
+		// the causal initial value, summed until the contributions vanish
+		final int horizon = (int)Math.ceil(Math.log(1e-7) / Math.log(Math.abs(z)));
+
+		double sum = line[0];
+
+		if (size < horizon) {
+			// short lines: the exact sum over the mirrored line, which is
+			// periodic with 2 * size - 2
+			double zk = z;
+			double z2k = Math.pow(z, size - 1);
+
+			sum += z2k * line[size - 1];
+			z2k *= z2k / z;
+
+			for (int k = 1; k < size - 1; ++k) {
+				sum += (zk + z2k) * line[k];
+				zk *= z;
+				z2k /= z;
+			}
+
+			sum /= 1 - zk * zk;
+		} else {
+			double zk = z;
+
+			for (int k = 1; k < horizon; ++k) {
+				sum += zk * line[k];
+				zk *= z;
+			}
+		}
+
+		line[0] = sum;
+
+		for (int k = 1; k < size; ++k)
+			line[k] += z * line[k - 1];
+
+		// the anti-causal initial value
+		line[size - 1] = z / (z * z - 1) * (line[size - 1] + z * line[size - 2]);
+
+		for (int k = size - 2; k >= 0; --k)
+			line[k] = z * (line[k + 1] - line[k]);
+	}
+
+	/**
+	 * Evaluates the cubic B-spline from the 4^n coefficients around a real
+	 * position, one dimension after the other
+	 */
+	public static class CubicBSplineInterpolator extends RealPoint implements RealRandomAccess<FloatType> {
+
+		protected final RandomAccess<FloatType> access;
+		protected final FloatType value = new FloatType();
+
+		protected final long[] min;
+		protected final double[] weights;
+		protected final double[] buffer;
+		protected final int[] counter;
+
+		public CubicBSplineInterpolator(final RandomAccess<FloatType> access) {
+
+			super(access.numDimensions());
+
+			this.access = access;
+			this.min = new long[n];
+			this.weights = new double[4 * n];
+			this.buffer = new double[1 << (2 * n)];
+			this.counter = new int[n];
+		}
+
+		@Override
+		public FloatType get() {
+
+			for (int d = 0; d < n; ++d) {
+				final double floor = Math.floor(position[d]);
+				final double t = position[d] - floor;
+				final double t2 = t * t;
+				final double t3 = t2 * t;
+
+				// the neighbors floor - 1 to floor + 2
+				min[d] = (long)floor - 1;
+				weights[4 * d] = (1 - t) * (1 - t) * (1 - t) / 6;
+				weights[4 * d + 1] = 2.0 / 3.0 - t2 + t3 / 2;
+				weights[4 * d + 2] = 1.0 / 6.0 + (t + t2 - t3) / 2;
+				weights[4 * d + 3] = t3 / 6;
+
+				counter[d] = 0;
+			}
+
+			access.setPosition(min);
+
+			// read in flat order
+			for (int i = 0; i < buffer.length; ++i) {
+				buffer[i] = access.get().getRealDouble();
+
+				for (int d = 0; d < n; ++d) {
+					if (++counter[d] < 4) {
+						access.fwd(d);
+						break;
+					}
+
+					counter[d] = 0;
+					access.move(-3, d);
+				}
+			}
+
+			// sum one dimension after the other
+			int length = buffer.length;
+
+			for (int d = 0; d < n; ++d) {
+				length /= 4;
+
+				for (int j = 0; j < length; ++j)
+					buffer[j] =
+							buffer[4 * j] * weights[4 * d] +
+							buffer[4 * j + 1] * weights[4 * d + 1] +
+							buffer[4 * j + 2] * weights[4 * d + 2] +
+							buffer[4 * j + 3] * weights[4 * d + 3];
+			}
+
+			value.setReal(buffer[0]);
+
+			return value;
+		}
+
+		@Override
+		public CubicBSplineInterpolator copy() {
+
+			final CubicBSplineInterpolator copy = new CubicBSplineInterpolator(access.copyRandomAccess());
+			copy.setPosition(this);
+
+			return copy;
+		}
+
+		@Override
+		public CubicBSplineInterpolator copyRealRandomAccess() {
+
+			return copy();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final String path = System.getProperty("java.io.tmpdir") + "/blobs-bspline.img";
+
+		// the first call computes and saves the coefficients, later calls
+		// and other transforms of blobs reuse them
+		long time = System.currentTimeMillis();
+		final RealRandomAccessible<FloatType> bspline = interpolate(blobs, path, numThreads);
+		System.out.println("coefficients: " + (System.currentTimeMillis() - time) + " ms");
+
+		time = System.currentTimeMillis();
+		interpolate(blobs, numThreads);
+		System.out.println("cached coefficients: " + (System.currentTimeMillis() - time) + " ms");
+
+		// compare to the interpolations of Task8_Interpolation
+		final RealRandomAccessible<UnsignedByteType> linear = Views.interpolate(
+				Views.extendMirrorSingle(blobs),
+				new NLinearInterpolatorFactory<>());
+
+		final BdvOptions options = BdvOptions.options().is2D();
+
+		BdvStackSource<?> bdv = BdvFunctions.show(linear, blobs, "linear", options);
+		bdv = BdvFunctions.show(bspline, blobs, "cubic b-spline", options.addTo(bdv));
+
+		bdv.getBdvHandle().getViewerPanel().setDisplayMode(DisplayMode.SINGLE);
+	}
+}
@@ -0,0 +1,208 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.Arrays;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Lazy downsampling by integer factors that combines every block of pixels
+ * into one instead of just dropping pixels like Views.subsample. The result
+ * is a cached CellImg whose cells are computed on first access, or ahead of
+ * time in parallel using {@link #prefetch}.
+ */
+public class Downsampling {
+
+	/**
+	 * How the pixels of a block are combined
+	 */
+	public enum Mode {
+		/** the mean, for intensities */
+		AVERAGE,
+		/** the maximum, keeps small bright structures */
+		MAX,
+		/** the most frequent value, for labels */
+		MODE
+	}
+
+	/**
+	 * Downsample blocks of pixels, blocks that are cut by the border of the
+	 * source are combined over the existing pixels only. Both images are
+	 * expected to be zero-min, the target must have the size ceil(source /
+	 * factors).
+	 *
+	 * @param source
+	 * @param target
+	 * @param factors
+	 *            - the downsampling factor in each dimension
+	 * @param mode
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void downsample(
+			final RandomAccessibleInterval<T> source,
+			final RandomAccessibleInterval<S> target,
+			final int[] factors,
+			final Mode mode) {
+
+		switch (mode) {
+		case AVERAGE:
+			PyramidExport.downsampleAverage(source, target, factors);
+			break;
+		case MAX:
+			PyramidExport.downsample(source, target, factors, Downsampling::max);
+			break;
+		default:
+			PyramidExport.downsample(source, target, factors, Downsampling::mode);
+		}
+	}
+
+	protected static double max(final double[] values, final int count) {
+
+		double max = values[0];
+
+		for (int i = 1; i < count; ++i)
+			max = Math.max(max, values[i]);
+
+		return max;
+	}
+
+	/**
+	 * @param values
+	 * @param count
+	 * @return the most frequent value, the smallest one if several are equally
+	 *         frequent
+	 */
+	protected static double mode(final double[] values, final int count) {
+
+		Arrays.sort(values, 0, count);
+
+		double mode = values[0];
+		int modeCount = 0;
+
+		for (int i = 0; i < count;) {
+			int j = i + 1;
+			while (j < count && values[j] == values[i])
+				++j;
+
+			if (j - i > modeCount) {
+				mode = values[i];
+				modeCount = j - i;
+			}
+
+			i = j;
+		}
+
+		return mode;
+	}
+
+	/**
+	 * Create a lazily downsampled view. Every cell is computed from the
+	 * corresponding block of the source when it is first accessed and held
+	 * with soft references.
+	 *
+	 * @param img
+	 *            - the source, typically virtual
+	 * @param mode
+	 * @param cellDimensions
+	 *            - the cell size of the downsampled image
+	 * @param factors
+	 *            - the downsampling factor in each dimension, can differ
+	 *            between dimensions
+	 * @return the downsampled image, zero-min
+	 */
+	public static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> downsample(
+			final RandomAccessibleInterval<T> img,
+			final Mode mode,
+			final int[] cellDimensions,
+			final int... factors) {
+
+		final int n = img.numDimensions();
+		final RandomAccessibleInterval<T> source = Views.zeroMin(img);
+
+		final long[] dimensions = new long[n];
+		for (int d = 0; d < n; ++d)
+			dimensions[d] = (source.dimension(d) + factors[d] - 1) / factors[d];
+
+		// combine the block of the source that covers the cell
+		final CellLoader<T> loader = cell -> {
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+
+			for (int d = 0; d < n; ++d) {
+				min[d] = cell.min(d) * factors[d];
+				max[d] = Math.min(cell.max(d) * factors[d] + factors[d] - 1, source.max(d));
+			}
+
+			downsample(
+					Views.zeroMin(Views.interval(source, new FinalInterval(min, max))),
+					Views.zeroMin(cell),
+					factors,
+					mode);
+		};
+
+		return CachedViews.cachedCellImg(dimensions, Util.getTypeFromInterval(source).createVariable(), loader, cellDimensions, CacheType.SOFTREF, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Compute all cells of a cached image in parallel by touching one pixel in
+	 * each of them
+	 *
+	 * @param cached
+	 * @param cellDimensions
+	 *            - the cell size of the cached image
+	 * @param numThreads
+	 */
+	public static <T> void prefetch(final RandomAccessibleInterval<T> cached, final int[] cellDimensions, final int numThreads) {
+
+		Blocks.forEach(Blocks.split(cached, cellDimensions), cell -> {
+			final RandomAccess<T> ra = cached.randomAccess();
+			ra.setPosition(Intervals.minAsLongArray(cell));
+			ra.get();
+		}, numThreads);
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// the stack is anisotropic, so z is not downsampled
+		final int[] factors = new int[]{4, 4, 1};
+		final int[] cellDimensions = new int[]{32, 32, 32};
+
+		final RandomAccessibleInterval<UnsignedByteType> average = downsample(img, Mode.AVERAGE, cellDimensions, factors);
+		final RandomAccessibleInterval<UnsignedByteType> max = downsample(img, Mode.MAX, cellDimensions, factors);
+
+		long time = System.currentTimeMillis();
+		prefetch(average, cellDimensions, Runtime.getRuntime().availableProcessors());
+		System.out.println("computed average in " + (System.currentTimeMillis() - time) + " ms");
+
+		// compare to Task7_Views.subsampling
+		BdvStackSource<?> bdv;
+		bdv = BdvFunctions.show(Views.subsample(img, 4, 4, 1), "subsampled");
+		bdv.setDisplayRange(0, 255);
+
+		bdv = BdvFunctions.show(average, "average", new BdvOptions().addTo(bdv));
+		bdv.setColor(new ARGBType(ARGBType.rgba(0, 255, 0, 0)));
+		bdv.setDisplayRange(0, 255);
+
+		bdv = BdvFunctions.show(max, "max", new BdvOptions().addTo(bdv));
+		bdv.setColor(new ARGBType(ARGBType.rgba(255, 0, 255, 0)));
+		bdv.setDisplayRange(0, 255);
+	}
+}
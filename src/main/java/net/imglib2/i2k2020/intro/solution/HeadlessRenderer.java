@@ -0,0 +1,344 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import javax.imageio.ImageIO;
+
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Render slices or maximum intensity projections of one or more sources into
+ * ARGB images and PNG files without a display, e.g. for thumbnails or quality
+ * control on headless compute nodes. Works like the BigDataViewer renderer: the
+ * view transform maps source coordinates to screen coordinates, every source
+ * is converted using its display range and color, and the sources are blended
+ * additively. The screen is rendered in tiles in parallel.
+ */
+public class HeadlessRenderer {
+
+	/**
+	 * A source with its display settings
+	 */
+	public static class RenderSource {
+
+		public final RealRandomAccessible<? extends RealType<?>> source;
+		public final int color;
+		public final double min, max;
+
+		/**
+		 * @param source
+		 *            - 2d or 3d, 2d sources are constant along z
+		 * @param color
+		 *            - the color of the maximal intensity
+		 * @param min
+		 *            - the lower bound of the display range
+		 * @param max
+		 *            - the upper bound of the display range
+		 */
+		public RenderSource(final RealRandomAccessible<? extends RealType<?>> source, final ARGBType color, final double min, final double max) {
+
+			this.source = source;
+			this.color = color.get();
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	/**
+	 * Create a source from a RandomAccessible using nearest neighbor
+	 * interpolation
+	 *
+	 * @param img
+	 * @param color
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public static <T extends RealType<T>> RenderSource source(final RandomAccessible<T> img, final ARGBType color, final double min, final double max) {
+
+		return new RenderSource(Views.interpolate(img, new NearestNeighborInterpolatorFactory<>()), color, min, max);
+	}
+
+	/**
+	 * Render a slice or a maximum intensity projection
+	 *
+	 * @param sources
+	 * @param viewerTransform
+	 *            - maps source coordinates to screen coordinates
+	 * @param width
+	 * @param height
+	 * @param depth
+	 *            - the number of planes centered around screen z=0 that are
+	 *            projected, 1 renders the slice at z=0
+	 * @param tileSize
+	 *            - the size of the tiles that are rendered in parallel
+	 * @param numThreads
+	 * @return
+	 */
+	public static ArrayImg<ARGBType, IntArray> render(
+			final List<RenderSource> sources,
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height,
+			final int depth,
+			final int tileSize,
+			final int numThreads) {
+
+		final ArrayImg<ARGBType, IntArray> screen = ArrayImgs.argbs(width, height);
+		final int[] pixels = screen.update(null).getCurrentStorageArray();
+
+		// screen to source coordinates
+		final AffineTransform3D toSource = viewerTransform.inverse();
+
+		final List<Interval> tiles = Blocks.split(new FinalInterval(width, height), new int[]{tileSize, tileSize});
+
+		Blocks.forEach(tiles, tile -> writeTile(renderTile(sources, toSource, tile, depth, 1, () -> false), tile, pixels, width), numThreads);
+
+		return screen;
+	}
+
+	/**
+	 * Render a slice or a maximum intensity projection using all available
+	 * processors
+	 *
+	 * @param sources
+	 * @param viewerTransform
+	 * @param width
+	 * @param height
+	 * @param depth
+	 * @return
+	 */
+	public static ArrayImg<ARGBType, IntArray> render(
+			final List<RenderSource> sources,
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height,
+			final int depth) {
+
+		return render(sources, viewerTransform, width, height, depth, 64, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Render one tile of the screen
+	 *
+	 * @param sources
+	 * @param toSource
+	 *            - maps screen coordinates to source coordinates
+	 * @param tile
+	 * @param depth
+	 * @param step
+	 *            - sample only every step-th pixel and fill step x step blocks
+	 *            with it, 1 renders at full resolution
+	 * @param isCancelled
+	 *            - checked after every line, stops rendering if true
+	 * @return the ARGB pixels of the tile, null if cancelled
+	 */
+	protected static int[] renderTile(
+			final List<RenderSource> sources,
+			final AffineTransform3D toSource,
+			final Interval tile,
+			final int depth,
+			final int step,
+			final BooleanSupplier isCancelled) {
+
+		final int x0 = (int)tile.min(0);
+		final int y0 = (int)tile.min(1);
+		final int w = (int)tile.dimension(0);
+		final int h = (int)tile.dimension(1);
+
+		// the sampling grid
+		final int sw = (w + step - 1) / step;
+		final int sh = (h + step - 1) / step;
+
+		final double zStart = -(depth - 1) / 2.0;
+
+		// additively blended color channels of the samples
+		final double[] r = new double[sw * sh];
+		final double[] g = new double[sw * sh];
+		final double[] b = new double[sw * sh];
+
+		final double[] screenPosition = new double[3];
+		final double[] sourcePosition = new double[3];
+
+		for (final RenderSource renderSource : sources) {
+			final RealRandomAccess<? extends RealType<?>> access = renderSource.source.realRandomAccess();
+			final int n = Math.min(3, access.numDimensions());
+
+			// a display range of zero width is a step at min
+			final double width = renderSource.max - renderSource.min;
+			final double scale = width == 0 ? 0 : 1.0 / width;
+			final double cr = ARGBType.red(renderSource.color);
+			final double cg = ARGBType.green(renderSource.color);
+			final double cb = ARGBType.blue(renderSource.color);
+
+			for (int y = 0; y < sh; ++y) {
+				if (isCancelled.getAsBoolean())
+					return null;
+
+				for (int x = 0; x < sw; ++x) {
+					screenPosition[0] = x0 + x * step;
+					screenPosition[1] = y0 + y * step;
+
+					double value = Double.NEGATIVE_INFINITY;
+
+					for (int z = 0; z < depth; ++z) {
+						screenPosition[2] = zStart + z;
+						toSource.apply(screenPosition, sourcePosition);
+
+						for (int d = 0; d < n; ++d)
+							access.setPosition(sourcePosition[d], d);
+
+						// NaN samples are skipped, they would blank the pixel
+						final double sample = access.get().getRealDouble();
+						if (sample > value)
+							value = sample;
+					}
+
+					final double intensity = width == 0 ?
+							(value > renderSource.min ? 1 : 0) :
+							Math.max(0, Math.min(1, (value - renderSource.min) * scale));
+					final int i = y * sw + x;
+
+					r[i] += intensity * cr;
+					g[i] += intensity * cg;
+					b[i] += intensity * cb;
+				}
+			}
+		}
+
+		final int[] pixels = new int[w * h];
+
+		for (int y = 0; y < h; ++y)
+			for (int x = 0; x < w; ++x) {
+				final int i = (y / step) * sw + x / step;
+
+				pixels[y * w + x] = ARGBType.rgba(
+						Math.min(255, (int)Math.round(r[i])),
+						Math.min(255, (int)Math.round(g[i])),
+						Math.min(255, (int)Math.round(b[i])),
+						255);
+			}
+
+		return pixels;
+	}
+
+	/**
+	 * Copy the pixels of a tile into the screen
+	 *
+	 * @param tilePixels
+	 * @param tile
+	 * @param pixels
+	 *            - the pixels of the screen
+	 * @param width
+	 *            - the width of the screen
+	 */
+	protected static void writeTile(final int[] tilePixels, final Interval tile, final int[] pixels, final int width) {
+
+		final int w = (int)tile.dimension(0);
+
+		for (int y = 0; y < tile.dimension(1); ++y)
+			System.arraycopy(tilePixels, y * w, pixels, (int)(tile.min(1) + y) * width + (int)tile.min(0), w);
+	}
+
+	/**
+	 * Save a rendered image as PNG, does not require a display
+	 *
+	 * @param screen
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void savePng(final ArrayImg<ARGBType, IntArray> screen, final String path) throws IOException {
+
+		final int width = (int)screen.dimension(0);
+		final int height = (int)screen.dimension(1);
+
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, width, height, screen.update(null).getCurrentStorageArray(), 0, width);
+
+		if (!ImageIO.write(image, "png", new File(path)))
+			throw new IOException("no PNG writer available.");
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		final String directory = System.getProperty("java.io.tmpdir");
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		// the 45 degree rotation of Task9_RealViews, linearly interpolated
+		final AffineTransform3D rotation = new AffineTransform3D();
+		rotation.translate(-blobs.dimension(0) / 2.0, -blobs.dimension(1) / 2.0, 0);
+		rotation.rotate(2, Math.toRadians(45));
+		rotation.translate(blobs.dimension(0) / 2.0, blobs.dimension(1) / 2.0, 0);
+
+		final RenderSource blobsSource = new RenderSource(
+				Views.interpolate(Views.extendZero(blobs), new NLinearInterpolatorFactory<>()),
+				new ARGBType(ARGBType.rgba(255, 0, 255, 0)),
+				0,
+				255);
+
+		final ArrayImg<ARGBType, IntArray> rotated = render(
+				Arrays.asList(blobsSource),
+				rotation,
+				(int)blobs.dimension(0),
+				(int)blobs.dimension(1),
+				1);
+
+		savePng(rotated, new File(directory, "blobs-rotated.png").getAbsolutePath());
+
+		// a maximum intensity projection of the whole stack and a zoomed
+		// central slice
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final AffineTransform3D center = new AffineTransform3D();
+		center.translate(0, 0, -img.dimension(2) / 2.0);
+
+		final List<RenderSource> sources = new ArrayList<>();
+		sources.add(source(Views.extendZero(img), new ARGBType(ARGBType.rgba(0, 255, 0, 0)), 0, 255));
+
+		final ArrayImg<ARGBType, IntArray> projection = render(
+				sources,
+				center,
+				(int)img.dimension(0),
+				(int)img.dimension(1),
+				(int)img.dimension(2));
+
+		savePng(projection, new File(directory, "lightsheet-mip.png").getAbsolutePath());
+
+		final AffineTransform3D zoom = center.copy();
+		zoom.scale(2);
+
+		savePng(
+				render(sources, zoom, (int)img.dimension(0), (int)img.dimension(1), 1),
+				new File(directory, "lightsheet-zoom.png").getAbsolutePath());
+
+		System.out.println("saved renderings to " + directory);
+	}
+}
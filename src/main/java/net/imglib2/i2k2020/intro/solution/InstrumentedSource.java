@@ -0,0 +1,635 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A BigDataViewer source that counts how many pixels are sampled from the
+ * wrapped source and, for volatile sources, how many of the samples were valid
+ * (loaded) or invalid (not loaded yet), and measures how long a render pass
+ * takes from its first sample until the statistics are collected with
+ * {@link #collect()}. Every rendering thread counts into its own counters, so
+ * sampling a pixel costs an ordered store and no clock or atomic update.
+ *
+ * @param <T>
+ */
+public class InstrumentedSource<T> implements Source<T> {
+
+	/**
+	 * The statistics collected for one source during one render pass, nanos
+	 * is the wall time from the first sample of the pass until it was
+	 * collected
+	 */
+	public static class FrameStatistics {
+
+		public final String source;
+		public final long pixels;
+		public final long nanos;
+		public final long validSamples;
+		public final long invalidSamples;
+
+		public FrameStatistics(final String source, final long pixels, final long nanos, final long validSamples, final long invalidSamples) {
+
+			this.source = source;
+			this.pixels = pixels;
+			this.nanos = nanos;
+			this.validSamples = validSamples;
+			this.invalidSamples = invalidSamples;
+		}
+
+		@Override
+		public String toString() {
+
+			return source + ": " + pixels + " px sampled in " + (nanos / 1000000.0) + " ms, valid=" + validSamples + ", invalid=" + invalidSamples;
+		}
+	}
+
+	/**
+	 * Counts the samples of one thread. Only that thread writes them, so an
+	 * ordered store (lazySet) of the incremented value is enough, and
+	 * {@link #collect()} reads them from another thread without tearing.
+	 */
+	protected static class Counters {
+
+		final AtomicLong pixels = new AtomicLong();
+		final AtomicLong validSamples = new AtomicLong();
+		final AtomicLong invalidSamples = new AtomicLong();
+	}
+
+	/**
+	 * The counters of the thread that currently uses an access, accesses are
+	 * usually used by one thread only, so the ThreadLocal is looked up once
+	 */
+	protected class Batch {
+
+		Thread owner;
+		Counters counters;
+
+		Counters get() {
+
+			final Thread thread = Thread.currentThread();
+
+			if (thread != owner) {
+				owner = thread;
+				counters = threadCounters.get();
+			}
+
+			return counters;
+		}
+	}
+
+	protected final Source<T> source;
+
+	// the counters of all threads that sampled this source
+	protected final List<Counters> allCounters = new CopyOnWriteArrayList<>();
+	protected final ThreadLocal<Counters> threadCounters = ThreadLocal.withInitial(() -> {
+		final Counters counters = new Counters();
+		allCounters.add(counters);
+		return counters;
+	});
+
+	// the sums at the last collect, guarded by this
+	protected long collectedPixels, collectedValidSamples, collectedInvalidSamples;
+
+	// when the first pixel of the current pass was sampled, 0 if none was
+	protected final AtomicLong passStart = new AtomicLong();
+
+	public InstrumentedSource(final Source<T> source) {
+
+		this.source = source;
+	}
+
+	/**
+	 * The statistics since the last call. Samples that other threads take
+	 * while collecting may be reported with the next call.
+	 *
+	 * @return
+	 */
+	public synchronized FrameStatistics collect() {
+
+		final long start = passStart.getAndSet(0);
+		final long nanos = start == 0 ? 0 : System.nanoTime() - start;
+
+		long pixels = 0, validSamples = 0, invalidSamples = 0;
+
+		for (final Counters counters : allCounters) {
+			pixels += counters.pixels.get();
+			validSamples += counters.validSamples.get();
+			invalidSamples += counters.invalidSamples.get();
+		}
+
+		final FrameStatistics statistics = new FrameStatistics(
+				getName(),
+				pixels - collectedPixels,
+				nanos,
+				validSamples - collectedValidSamples,
+				invalidSamples - collectedInvalidSamples);
+
+		collectedPixels = pixels;
+		collectedValidSamples = validSamples;
+		collectedInvalidSamples = invalidSamples;
+
+		return statistics;
+	}
+
+	/**
+	 * Count a sampled pixel
+	 *
+	 * @param value
+	 *            - the sampled value
+	 * @param counters
+	 *            - the counters of the current thread
+	 * @return the value
+	 */
+	protected T count(final T value, final Counters counters) {
+
+		// the clock is read once per pass only
+		if (passStart.get() == 0)
+			passStart.compareAndSet(0, System.nanoTime());
+
+		increment(counters.pixels);
+
+		if (value instanceof Volatile) {
+			if (((Volatile<?>)value).isValid())
+				increment(counters.validSamples);
+			else
+				increment(counters.invalidSamples);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Increment a counter that only the current thread writes
+	 *
+	 * @param counter
+	 */
+	protected static void increment(final AtomicLong counter) {
+
+		counter.lazySet(counter.get() + 1);
+	}
+
+	@Override
+	public boolean isPresent(final int t) {
+
+		return source.isPresent(t);
+	}
+
+	@Override
+	public RandomAccessibleInterval<T> getSource(final int t, final int level) {
+
+		return new CountingRandomAccessibleInterval(source.getSource(t, level));
+	}
+
+	@Override
+	public RealRandomAccessible<T> getInterpolatedSource(final int t, final int level, final Interpolation method) {
+
+		return new CountingRealRandomAccessible(source.getInterpolatedSource(t, level, method));
+	}
+
+	@Override
+	public void getSourceTransform(final int t, final int level, final AffineTransform3D transform) {
+
+		source.getSourceTransform(t, level, transform);
+	}
+
+	@Override
+	public T getType() {
+
+		return source.getType();
+	}
+
+	@Override
+	public String getName() {
+
+		return source.getName();
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions() {
+
+		return source.getVoxelDimensions();
+	}
+
+	@Override
+	public int getNumMipmapLevels() {
+
+		return source.getNumMipmapLevels();
+	}
+
+	@Override
+	public boolean doBoundingBoxCulling() {
+
+		return source.doBoundingBoxCulling();
+	}
+
+	protected class CountingRandomAccessibleInterval extends AbstractWrappedInterval<RandomAccessibleInterval<T>> implements RandomAccessibleInterval<T> {
+
+		public CountingRandomAccessibleInterval(final RandomAccessibleInterval<T> source) {
+
+			super(source);
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess() {
+
+			return new CountingRandomAccess(sourceInterval.randomAccess());
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess(final Interval interval) {
+
+			return new CountingRandomAccess(sourceInterval.randomAccess(interval));
+		}
+	}
+
+	protected class CountingRealRandomAccessible implements RealRandomAccessible<T> {
+
+		final RealRandomAccessible<T> source;
+
+		public CountingRealRandomAccessible(final RealRandomAccessible<T> source) {
+
+			this.source = source;
+		}
+
+		@Override
+		public int numDimensions() {
+
+			return source.numDimensions();
+		}
+
+		@Override
+		public RealRandomAccess<T> realRandomAccess() {
+
+			return new CountingRealRandomAccess(source.realRandomAccess());
+		}
+
+		@Override
+		public RealRandomAccess<T> realRandomAccess(final RealInterval interval) {
+
+			return new CountingRealRandomAccess(source.realRandomAccess(interval));
+		}
+	}
+
+	protected class CountingRandomAccess implements RandomAccess<T> {
+
+		final RandomAccess<T> access;
+		final Batch batch = new Batch();
+
+		public CountingRandomAccess(final RandomAccess<T> access) {
+
+			this.access = access;
+		}
+
+		@Override
+		public T get() {
+
+			return count(access.get(), batch.get());
+		}
+
+		@Override
+		public CountingRandomAccess copy() {
+
+			return new CountingRandomAccess(access.copyRandomAccess());
+		}
+
+		@Override
+		public CountingRandomAccess copyRandomAccess() {
+
+			return copy();
+		}
+
+		@Override
+		public int numDimensions() {
+
+			return access.numDimensions();
+		}
+
+		@Override
+		public void localize(final int[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public void localize(final long[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public int getIntPosition(final int d) {
+
+			return access.getIntPosition(d);
+		}
+
+		@Override
+		public long getLongPosition(final int d) {
+
+			return access.getLongPosition(d);
+		}
+
+		@Override
+		public void localize(final float[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public void localize(final double[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public float getFloatPosition(final int d) {
+
+			return access.getFloatPosition(d);
+		}
+
+		@Override
+		public double getDoublePosition(final int d) {
+
+			return access.getDoublePosition(d);
+		}
+
+		@Override
+		public void fwd(final int d) {
+
+			access.fwd(d);
+		}
+
+		@Override
+		public void bck(final int d) {
+
+			access.bck(d);
+		}
+
+		@Override
+		public void move(final int distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final long distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final Localizable localizable) {
+
+			access.move(localizable);
+		}
+
+		@Override
+		public void move(final int[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void move(final long[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void setPosition(final Localizable localizable) {
+
+			access.setPosition(localizable);
+		}
+
+		@Override
+		public void setPosition(final int[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final long[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final int position, final int d) {
+
+			access.setPosition(position, d);
+		}
+
+		@Override
+		public void setPosition(final long position, final int d) {
+
+			access.setPosition(position, d);
+		}
+	}
+
+	protected class CountingRealRandomAccess implements RealRandomAccess<T> {
+
+		final RealRandomAccess<T> access;
+		final Batch batch = new Batch();
+
+		public CountingRealRandomAccess(final RealRandomAccess<T> access) {
+
+			this.access = access;
+		}
+
+		@Override
+		public T get() {
+
+			return count(access.get(), batch.get());
+		}
+
+		@Override
+		public CountingRealRandomAccess copy() {
+
+			return new CountingRealRandomAccess(access.copyRealRandomAccess());
+		}
+
+		@Override
+		public CountingRealRandomAccess copyRealRandomAccess() {
+
+			return copy();
+		}
+
+		@Override
+		public int numDimensions() {
+
+			return access.numDimensions();
+		}
+
+		@Override
+		public void localize(final float[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public void localize(final double[] position) {
+
+			access.localize(position);
+		}
+
+		@Override
+		public float getFloatPosition(final int d) {
+
+			return access.getFloatPosition(d);
+		}
+
+		@Override
+		public double getDoublePosition(final int d) {
+
+			return access.getDoublePosition(d);
+		}
+
+		@Override
+		public void fwd(final int d) {
+
+			access.fwd(d);
+		}
+
+		@Override
+		public void bck(final int d) {
+
+			access.bck(d);
+		}
+
+		@Override
+		public void move(final int distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final long distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final Localizable localizable) {
+
+			access.move(localizable);
+		}
+
+		@Override
+		public void move(final int[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void move(final long[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void setPosition(final Localizable localizable) {
+
+			access.setPosition(localizable);
+		}
+
+		@Override
+		public void setPosition(final int[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final long[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final int position, final int d) {
+
+			access.setPosition(position, d);
+		}
+
+		@Override
+		public void setPosition(final long position, final int d) {
+
+			access.setPosition(position, d);
+		}
+
+		@Override
+		public void move(final float distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final double distance, final int d) {
+
+			access.move(distance, d);
+		}
+
+		@Override
+		public void move(final RealLocalizable distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void move(final float[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void move(final double[] distance) {
+
+			access.move(distance);
+		}
+
+		@Override
+		public void setPosition(final RealLocalizable position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final float[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final double[] position) {
+
+			access.setPosition(position);
+		}
+
+		@Override
+		public void setPosition(final float position, final int d) {
+
+			access.setPosition(position, d);
+		}
+
+		@Override
+		public void setPosition(final double position, final int d) {
+
+			access.setPosition(position, d);
+		}
+	}
+}
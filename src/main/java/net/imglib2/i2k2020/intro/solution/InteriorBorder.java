@@ -0,0 +1,201 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
+import net.imglib2.algorithm.neighborhood.RectangleShape;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * Process an interval of an extended image (e.g. Views.extendMirrorSingle)
+ * split into the interior, where the image is accessed directly without any
+ * out-of-bounds logic, and thin border slabs that go through the out-of-bounds
+ * strategy. For neighborhood operations the interior shrinks by the radius of
+ * the neighborhood.
+ */
+public class InteriorBorder {
+
+	/**
+	 * Split an interval into the part inside the interior and the slabs around
+	 * it. The slabs along dimension d are bounded by the interior in all
+	 * dimensions smaller than d, so all parts are disjoint.
+	 *
+	 * @param interval
+	 * @param interior
+	 * @return the interior part first (null if empty), then the non-empty
+	 *         border slabs
+	 */
+	public static List<Interval> split(final Interval interval, final Interval interior) {
+
+		final int n = interval.numDimensions();
+		final List<Interval> parts = new ArrayList<>();
+
+		final Interval inside = Intervals.intersect(interval, interior);
+
+		if (Intervals.isEmpty(inside)) {
+			parts.add(null);
+			parts.add(new FinalInterval(interval));
+			return parts;
+		}
+
+		parts.add(inside);
+
+		final long[] min = Intervals.minAsLongArray(interval);
+		final long[] max = Intervals.maxAsLongArray(interval);
+
+		for (int d = 0; d < n; ++d) {
+			// below the interior
+			if (inside.min(d) > interval.min(d)) {
+				final long[] slabMax = max.clone();
+				slabMax[d] = inside.min(d) - 1;
+				parts.add(new FinalInterval(min.clone(), slabMax));
+			}
+
+			// above the interior
+			if (inside.max(d) < interval.max(d)) {
+				final long[] slabMin = min.clone();
+				slabMin[d] = inside.max(d) + 1;
+				parts.add(new FinalInterval(slabMin, max.clone()));
+			}
+
+			// the following slabs are bounded by the interior in d
+			min[d] = inside.min(d);
+			max[d] = inside.max(d);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Apply an operation to an output, split into interior blocks that read
+	 * the image directly and border slabs that read through the out-of-bounds
+	 * strategy. The parts are processed in parallel.
+	 *
+	 * @param input
+	 *            - typically an ExtendedRandomAccessibleInterval, anything else
+	 *            is processed as interior only
+	 * @param output
+	 * @param radius
+	 *            - how far the operation reads around each output pixel
+	 * @param blockSize
+	 *            - the interior is split into blocks of this size for
+	 *            parallel processing
+	 * @param operation
+	 *            - computes a part of the output from the input
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T, S> void process(
+			final RandomAccessible<T> input,
+			final RandomAccessibleInterval<S> output,
+			final long[] radius,
+			final int[] blockSize,
+			final BiConsumer<RandomAccessible<T>, RandomAccessibleInterval<S>> operation) {
+
+		final List<Interval> parts;
+		final RandomAccessible<T> interiorInput;
+
+		if (input instanceof ExtendedRandomAccessibleInterval) {
+			final RandomAccessibleInterval<T> source = ((ExtendedRandomAccessibleInterval<T, ?>)input).getSource();
+
+			parts = split(output, Intervals.expand(source, negate(radius)));
+			interiorInput = source;
+		} else {
+			parts = new ArrayList<>();
+			parts.add(output);
+			interiorInput = input;
+		}
+
+		// the interior blocks read the image directly
+		if (parts.get(0) != null)
+			Blocks.forEach(Blocks.split(parts.get(0), blockSize), block -> operation.accept(interiorInput, Views.interval(output, block)));
+
+		// the border slabs read through the out-of-bounds strategy
+		Blocks.forEach(parts.subList(1, parts.size()), slab -> operation.accept(input, Views.interval(output, slab)));
+	}
+
+	private static long[] negate(final long[] radius) {
+
+		final long[] negative = new long[radius.length];
+
+		for (int d = 0; d < radius.length; ++d)
+			negative[d] = -radius[d];
+
+		return negative;
+	}
+
+	/**
+	 * A mean filter as an example operation
+	 *
+	 * @param input
+	 * @param output
+	 * @param radius
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void mean(
+			final RandomAccessible<T> input,
+			final RandomAccessibleInterval<S> output,
+			final int radius) {
+
+		final RandomAccess<Neighborhood<T>> neighborhoods = new RectangleShape(radius, false).neighborhoodsRandomAccessible(input).randomAccess(output);
+		final Cursor<S> cursor = Views.iterable(output).localizingCursor();
+
+		while (cursor.hasNext()) {
+			final S s = cursor.next();
+			neighborhoods.setPosition(cursor);
+
+			double sum = 0;
+			final Neighborhood<T> neighborhood = neighborhoods.get();
+
+			for (final T t : neighborhood)
+				sum += t.getRealDouble();
+
+			s.setReal(sum / neighborhood.size());
+		}
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final Img<FloatType> output = new ArrayImgFactory<>(new FloatType()).create(img);
+		final RandomAccessible<UnsignedByteType> extended = Views.extendMirrorSingle(img);
+
+		final int radius = 1;
+		final long[] radii = new long[]{radius, radius, radius};
+
+		for (int i = 0; i < 3; ++i) {
+			long time = System.currentTimeMillis();
+
+			// every pixel through the out-of-bounds strategy
+			Blocks.forEach(
+					Blocks.split(output, new int[]{64, 64, 16}),
+					block -> mean(extended, Views.interval(output, block), radius));
+
+			System.out.println("extended everywhere: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+
+			// only the border slabs through the out-of-bounds strategy
+			process(extended, output, radii, new int[]{64, 64, 16}, (in, out) -> mean(in, out, radius));
+
+			System.out.println("interior/border split: " + (System.currentTimeMillis() - time) + " ms");
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.Arrays;
+
+import bdv.tools.transformation.TransformedSource;
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Source;
+import ij.IJ;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Multi-resolution sources for BigDataViewer that derive their downsampled
+ * levels lazily from any RandomAccessibleInterval. BigDataViewer picks the
+ * level that matches the screen resolution, so rendering an overview only
+ * touches as many pixels as the screen has once the levels are cached.
+ */
+public class MipmapSources {
+
+	/**
+	 * Create a lazily computed resolution pyramid. Every level is a cached
+	 * CellImg whose cells are averaged from the cells of the previous level on
+	 * first access, level 0 is a cached copy of the image itself.
+	 *
+	 * @param img
+	 *            - the full resolution image, typically virtual
+	 * @param factors
+	 *            - the relative downsampling factors of each level, see
+	 *            {@link PyramidExport#proposeFactors}
+	 * @param cellDimensions
+	 *            - the cell size of all levels
+	 * @return all levels, zero-min
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T>[] pyramid(
+			final RandomAccessibleInterval<T> img,
+			final int[][] factors,
+			final int[] cellDimensions) {
+
+		final int n = img.numDimensions();
+		final T type = Util.getTypeFromInterval(img).createVariable();
+
+		final RandomAccessibleInterval<T>[] levels = new RandomAccessibleInterval[factors.length];
+
+		levels[0] = CachedViews.cachedCellImg(Views.zeroMin(img), cellDimensions, CacheType.SOFTREF, Long.MAX_VALUE);
+
+		for (int l = 1; l < factors.length; ++l) {
+			final RandomAccessibleInterval<T> previous = levels[l - 1];
+			final int[] f = factors[l];
+
+			final long[] dimensions = new long[n];
+			for (int d = 0; d < n; ++d)
+				dimensions[d] = (previous.dimension(d) + f[d] - 1) / f[d];
+
+			// average the block of the previous level that covers the cell
+			final CellLoader<T> loader = cell -> {
+				final long[] min = new long[n];
+				final long[] max = new long[n];
+
+				for (int d = 0; d < n; ++d) {
+					min[d] = cell.min(d) * f[d];
+					max[d] = Math.min(cell.max(d) * f[d] + f[d] - 1, previous.max(d));
+				}
+
+				PyramidExport.downsampleAverage(
+						Views.zeroMin(Views.interval(previous, new FinalInterval(min, max))),
+						Views.zeroMin(cell),
+						f);
+			};
+
+			levels[l] = CachedViews.cachedCellImg(dimensions, type, loader, cellDimensions, CacheType.SOFTREF, Long.MAX_VALUE);
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Create a calibrated multi-resolution source from the levels of a
+	 * pyramid, 2d levels are made 3d as BigDataViewer expects
+	 *
+	 * @param levels
+	 * @param type
+	 *            - an instance of the pixel type of the levels
+	 * @param absoluteFactors
+	 *            - the downsampling factors of each level relative to level 0,
+	 *            see {@link PyramidExport#absoluteFactors}
+	 * @param voxelSize
+	 *            - the calibration of level 0
+	 * @param name
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NumericType<T>> Source<T> mipmapSource(
+			final RandomAccessibleInterval<T>[] levels,
+			final T type,
+			final long[][] absoluteFactors,
+			final double[] voxelSize,
+			final String name) {
+
+		final RandomAccessibleInterval<T>[] imgs = new RandomAccessibleInterval[levels.length];
+		final double[][] mipmapScales = new double[levels.length][3];
+
+		for (int l = 0; l < levels.length; ++l) {
+			imgs[l] = levels[l].numDimensions() == 2 ? Views.addDimension(levels[l], 0, 0) : levels[l];
+
+			Arrays.fill(mipmapScales[l], 1);
+			for (int d = 0; d < absoluteFactors[l].length; ++d)
+				mipmapScales[l][d] = absoluteFactors[l][d];
+		}
+
+		final double[] calibration = new double[]{1, 1, 1};
+		for (int d = 0; d < voxelSize.length; ++d)
+			calibration[d] = voxelSize[d];
+
+		final RandomAccessibleIntervalMipmapSource<T> source = new RandomAccessibleIntervalMipmapSource<>(
+				imgs,
+				type,
+				mipmapScales,
+				new FinalVoxelDimensions("px", calibration),
+				name);
+
+		// apply the calibration
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set(calibration[0], 0, 0, 0, 0, calibration[1], 0, 0, 0, 0, calibration[2], 0);
+
+		final TransformedSource<T> transformedSource = new TransformedSource<>(source);
+		transformedSource.setFixedTransform(transform);
+
+		return transformedSource;
+	}
+
+	/**
+	 * Show any RandomAccessibleInterval as a multi-resolution source whose
+	 * levels are computed on demand by a pool of fetcher threads. Cells that
+	 * are not computed yet are shown as not-yet-loaded, BigDataViewer then
+	 * falls back to coarser levels.
+	 *
+	 * @param img
+	 * @param voxelSize
+	 *            - the calibration, used to downsample anisotropy-aware
+	 * @param numLevels
+	 *            - the maximal number of levels
+	 * @param cellDimensions
+	 * @param name
+	 * @param options
+	 * @param numFetcherThreads
+	 * @return
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends RealType<T> & NativeType<T>> BdvStackSource<?> show(
+			final RandomAccessibleInterval<T> img,
+			final double[] voxelSize,
+			final int numLevels,
+			final int[] cellDimensions,
+			final String name,
+			final BdvOptions options,
+			final int numFetcherThreads) {
+
+		final int[][] factors = PyramidExport.proposeFactors(voxelSize, Intervals.dimensionsAsLongArray(img), numLevels);
+		final RandomAccessibleInterval<T>[] levels = pyramid(img, factors, cellDimensions);
+
+		// all levels share one pool of fetcher threads
+		final SharedQueue queue = new SharedQueue(numFetcherThreads);
+		final RandomAccessibleInterval[] volatileLevels = new RandomAccessibleInterval[levels.length];
+
+		for (int l = 0; l < levels.length; ++l)
+			volatileLevels[l] = VolatileViews.wrapAsVolatile(levels[l], queue);
+
+		final NumericType volatileType = (NumericType)((NumericType)Util.getTypeFromInterval(volatileLevels[0])).createVariable();
+
+		final Source source = mipmapSource(volatileLevels, volatileType, PyramidExport.absoluteFactors(factors), voxelSize, name);
+
+		return BdvFunctions.show(source, options);
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// BigDataViewer will choose the level that matches the zoom
+		show(img, new double[]{1, 1, 3}, 5, new int[]{32, 32, 32}, "stack 1", new BdvOptions(), Runtime.getRuntime().availableProcessors())
+				.setDisplayRange(0, 255);
+	}
+}
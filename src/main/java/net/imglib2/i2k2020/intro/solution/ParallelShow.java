@@ -0,0 +1,153 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Show virtual images in ImageJ after computing them in parallel. Otherwise
+ * ImageJ pulls the pixels of every displayed slice lazily on the AWT thread
+ * and recomputes them whenever the slider is moved.
+ */
+public class ParallelShow {
+
+	/**
+	 * Materialize a virtual image into a PlanarImg in parallel, plane by plane
+	 * (or in row blocks for 2d images). Progress is shown in the ImageJ status
+	 * bar, pressing Esc or interrupting the calling thread cancels.
+	 *
+	 * @param img
+	 *            - the virtual input
+	 * @param numThreads
+	 * @return the materialized image (zero-min), null if cancelled
+	 */
+	public static <T extends NativeType<T>> Img<T> materialize(final RandomAccessibleInterval<T> img, final int numThreads) {
+
+		final Img<T> output = new PlanarImgFactory<>(Util.getTypeFromInterval(img).createVariable()).create(img);
+		final RandomAccessibleInterval<T> target = Views.translate(output, Intervals.minAsLongArray(img));
+
+		// one block per plane, 2d images are split into rows
+		final int[] blockSize = new int[img.numDimensions()];
+
+		for (int d = 0; d < blockSize.length; ++d)
+			blockSize[d] = d == 0 ? (int)img.dimension(0) : 1;
+
+		if (img.numDimensions() > 1)
+			blockSize[1] = img.numDimensions() > 2 ? (int)img.dimension(1) : (int)Math.max(1, img.dimension(1) / (4 * numThreads));
+
+		final List<Interval> blocks = Blocks.split(target, blockSize);
+
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final AtomicInteger done = new AtomicInteger(0);
+
+		final ExecutorService service = Executors.newFixedThreadPool(numThreads);
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		IJ.resetEscape();
+
+		for (final Interval block : blocks)
+			futures.add(service.submit(() -> {
+				if (cancelled.get())
+					return;
+
+				Blocks.copy(img, Views.interval(target, block));
+				IJ.showProgress(done.incrementAndGet(), blocks.size());
+			}));
+
+		try {
+			for (final Future<?> future : futures) {
+				while (true) {
+					try {
+						future.get(100, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+						if (IJ.escapePressed()) {
+							cancelled.set(true);
+							IJ.showStatus("computation cancelled.");
+							return null;
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			cancelled.set(true);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			throw new RuntimeException("failed to materialize block: " + e.getCause(), e.getCause());
+		} finally {
+			service.shutdownNow();
+			IJ.showProgress(1.0);
+		}
+
+		return output;
+	}
+
+	/**
+	 * Materialize a virtual image in parallel and show it in ImageJ
+	 *
+	 * @param img
+	 * @param title
+	 * @return the ImagePlus, null if cancelled
+	 */
+	public static <T extends NumericType<T> & NativeType<T>> ImagePlus show(final RandomAccessibleInterval<T> img, final String title) {
+
+		final Img<T> materialized = materialize(img, Runtime.getRuntime().availableProcessors());
+
+		if (materialized == null)
+			return null;
+
+		return ImageJFunctions.show(materialized, title);
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final RandomAccessibleInterval<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		// the virtual cosine of Task10_Converter.displayCosine
+		final RandomAccessibleInterval<DoubleType> cosine = Converters.convert(
+				blobs,
+				(i, o) -> o.set(Math.cos(Math.sqrt(i.getRealDouble()))),
+				new DoubleType());
+
+		show(cosine, "cosine");
+
+		// the stacked mean filter of ComplexTask3_MeanFilter
+		final ArrayList<RandomAccessibleInterval<FloatType>> imgs = new ArrayList<>();
+
+		imgs.add(Converters.convert(blobs, new RealFloatConverter<UnsignedByteType>(), new FloatType()));
+		imgs.add(ComplexTask3_MeanFilter.meanFilter3(blobs, new FloatType()));
+
+		show(Views.stack(imgs), "mean filter");
+	}
+}
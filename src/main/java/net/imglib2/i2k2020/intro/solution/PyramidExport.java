@@ -0,0 +1,373 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import bdv.util.BdvFunctions;
+import bdv.viewer.Source;
+import ij.IJ;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Export an image as a multi-resolution pyramid into an N5 container reading
+ * the source only once, and load it again as a multi-resolution source for
+ * BigDataViewer
+ */
+public class PyramidExport {
+
+	/**
+	 * Propose the downsampling factors (1 or 2) of each level relative to the
+	 * previous level. A dimension is only downsampled if its effective
+	 * resolution is not much coarser than the finest dimension, so anisotropic
+	 * stacks first become isotropic. Stops early if no dimension can be
+	 * downsampled anymore.
+	 *
+	 * @param voxelSize
+	 *            - the calibration of the image
+	 * @param dimensions
+	 *            - the size of the image
+	 * @param numLevels
+	 *            - the maximal number of levels including full resolution
+	 * @return relative factors for each level, level 0 is all 1
+	 */
+	public static int[][] proposeFactors(final double[] voxelSize, final long[] dimensions, final int numLevels) {
+
+		final int n = dimensions.length;
+
+		final int[][] factors = new int[numLevels][n];
+		final long[] absolute = new long[n];
+
+		Arrays.fill(factors[0], 1);
+		Arrays.fill(absolute, 1);
+
+		for (int l = 1; l < numLevels; ++l) {
+
+			// the effective voxel size of the previous level
+			double minSize = Double.MAX_VALUE;
+			for (int d = 0; d < n; ++d)
+				minSize = Math.min(minSize, voxelSize[d] * absolute[d]);
+
+			boolean downsampled = false;
+
+			for (int d = 0; d < n; ++d) {
+				if (voxelSize[d] * absolute[d] < 1.5 * minSize && dimensions[d] / absolute[d] > 1) {
+					factors[l][d] = 2;
+					absolute[d] *= 2;
+					downsampled = true;
+				} else {
+					factors[l][d] = 1;
+				}
+			}
+
+			if (!downsampled)
+				return Arrays.copyOf(factors, l);
+		}
+
+		return factors;
+	}
+
+	/**
+	 * Accumulate the relative factors of each level into absolute factors
+	 * relative to full resolution
+	 *
+	 * @param factors
+	 * @return
+	 */
+	public static long[][] absoluteFactors(final int[][] factors) {
+
+		final long[][] absolute = new long[factors.length][factors[0].length];
+
+		for (int l = 0; l < factors.length; ++l)
+			for (int d = 0; d < factors[l].length; ++d)
+				absolute[l][d] = (l == 0 ? 1 : absolute[l - 1][d]) * factors[l][d];
+
+		return absolute;
+	}
+
+	/**
+	 * Combines the values of a block of pixels into one
+	 */
+	public interface BlockReducer {
+
+		/**
+		 * @param values
+		 *            - may be reordered
+		 * @param count
+		 *            - the number of values in the block
+		 * @return
+		 */
+		double reduce(double[] values, int count);
+	}
+
+	/**
+	 * Downsample by averaging blocks of pixels, blocks that are cut by the
+	 * border of the source are averaged over the existing pixels only. Both
+	 * images are expected to be zero-min, the target must have the size
+	 * ceil(source/factors).
+	 *
+	 * @param source
+	 * @param target
+	 * @param factors
+	 *            - the downsampling factor in each dimension
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void downsampleAverage(
+			final RandomAccessibleInterval<T> source,
+			final RandomAccessibleInterval<S> target,
+			final int[] factors) {
+
+		final boolean round = Util.getTypeFromInterval(target) instanceof IntegerType;
+
+		downsample(source, target, factors, (values, count) -> {
+			double sum = 0;
+			for (int i = 0; i < count; ++i)
+				sum += values[i];
+
+			return round ? Math.round(sum / count) : sum / count;
+		});
+	}
+
+	/**
+	 * Downsample by combining blocks of pixels, blocks that are cut by the
+	 * border of the source are combined over the existing pixels only. Both
+	 * images are expected to be zero-min, the target must have the size
+	 * ceil(source/factors).
+	 *
+	 * @param source
+	 * @param target
+	 * @param factors
+	 *            - the downsampling factor in each dimension
+	 * @param reducer
+	 *            - combines the pixels of a block
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void downsample(
+			final RandomAccessibleInterval<T> source,
+			final RandomAccessibleInterval<S> target,
+			final int[] factors,
+			final BlockReducer reducer) {
+
+		final int n = source.numDimensions();
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+
+		int blockSize = 1;
+		for (int d = 0; d < n; ++d)
+			blockSize *= factors[d];
+
+		// the values of one block
+		final double[] values = new double[blockSize];
+
+		final RandomAccess<T> ra = source.randomAccess();
+		final Cursor<S> cursor = Views.flatIterable(target).localizingCursor();
+
+		while (cursor.hasNext()) {
+			final S t = cursor.next();
+
+			for (int d = 0; d < n; ++d) {
+				min[d] = cursor.getLongPosition(d) * factors[d];
+				max[d] = Math.min(min[d] + factors[d] - 1, source.max(d));
+			}
+
+			// collect all pixels of the block
+			int count = 0;
+
+			ra.setPosition(min);
+
+			while (true) {
+				values[count++] = ra.get().getRealDouble();
+
+				int d = 0;
+				for (; d < n; ++d) {
+					if (ra.getLongPosition(d) < max[d]) {
+						ra.fwd(d);
+						break;
+					} else {
+						ra.setPosition(min[d], d);
+					}
+				}
+
+				if (d == n)
+					break;
+			}
+
+			t.setReal(reducer.reduce(values, count));
+		}
+	}
+
+	/**
+	 * Export an image as a multi-resolution pyramid (datasets s0, s1, ...) into
+	 * an N5 group. The image is read exactly once, in super-blocks that are
+	 * aligned with the blocks of the coarsest level. Each super-block is first
+	 * written at full resolution, and every further level is computed from the
+	 * previous level of the same super-block while it is still in memory.
+	 *
+	 * Note: one super-block has the size blockSize * factors of the coarsest
+	 * level and each thread holds one, so choose blockSize and numLevels
+	 * accordingly.
+	 *
+	 * @param img
+	 *            - the image to export
+	 * @param voxelSize
+	 *            - its calibration, used to downsample anisotropy-aware
+	 * @param numLevels
+	 *            - the maximal number of levels
+	 * @param blockSize
+	 *            - the N5 block size of all levels
+	 * @param n5
+	 *            - the N5 container
+	 * @param group
+	 *            - the group that will contain the levels
+	 * @param numThreads
+	 *            - how many super-blocks are processed in parallel
+	 * @throws IOException
+	 */
+	public static <T extends RealType<T> & NativeType<T>> void export(
+			final RandomAccessibleInterval<T> img,
+			final double[] voxelSize,
+			final int numLevels,
+			final int[] blockSize,
+			final N5Writer n5,
+			final String group,
+			final int numThreads) throws IOException {
+
+		final int n = img.numDimensions();
+		final T type = Util.getTypeFromInterval(img);
+		final long[] dimensions = Intervals.dimensionsAsLongArray(img);
+
+		final int[][] factors = proposeFactors(voxelSize, dimensions, numLevels);
+		final long[][] absolute = absoluteFactors(factors);
+		final int lastLevel = factors.length - 1;
+
+		// create the datasets of all levels
+		n5.createGroup(group);
+
+		for (int l = 0; l <= lastLevel; ++l) {
+			final long[] levelDimensions = new long[n];
+
+			for (int d = 0; d < n; ++d)
+				levelDimensions[d] = (dimensions[d] + absolute[l][d] - 1) / absolute[l][d];
+
+			n5.createDataset(group + "/s" + l, levelDimensions, blockSize, N5Utils.dataType(type), new GzipCompression());
+			n5.setAttribute(group + "/s" + l, "downsamplingFactors", absolute[l]);
+		}
+
+		n5.setAttribute(group, "scales", absolute);
+		n5.setAttribute(group, "pixelResolution", voxelSize);
+
+		// one super-block covers exactly one block of the coarsest level
+		final int[] superBlockSize = new int[n];
+
+		for (int d = 0; d < n; ++d)
+			superBlockSize[d] = blockSize[d] * (int)absolute[lastLevel][d];
+
+		final RandomAccessibleInterval<T> zeroMinImg = Views.zeroMin(img);
+
+		Blocks.forEach(Blocks.split(zeroMinImg, superBlockSize), superBlock -> {
+
+			try {
+				// read the source once
+				Img<T> level = new ArrayImgFactory<>(type).create(superBlock);
+				Blocks.copy(Views.zeroMin(Views.interval(zeroMinImg, superBlock)), level);
+
+				N5Utils.saveBlock(level, n5, group + "/s0", gridOffset(superBlock, absolute[0], blockSize));
+
+				// every level is computed from the previous one
+				for (int l = 1; l <= lastLevel; ++l) {
+					final long[] levelDimensions = new long[n];
+
+					for (int d = 0; d < n; ++d)
+						levelDimensions[d] = (level.dimension(d) + factors[l][d] - 1) / factors[l][d];
+
+					final Img<T> downsampled = new ArrayImgFactory<>(type).create(levelDimensions);
+					downsampleAverage(level, downsampled, factors[l]);
+
+					N5Utils.saveBlock(downsampled, n5, group + "/s" + l, gridOffset(superBlock, absolute[l], blockSize));
+
+					level = downsampled;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, numThreads);
+	}
+
+	/**
+	 * @param superBlock
+	 *            - in full resolution coordinates
+	 * @param absoluteFactors
+	 *            - of the level
+	 * @param blockSize
+	 * @return the position of the first block of the super-block in the grid
+	 *         of a level
+	 */
+	protected static long[] gridOffset(final Interval superBlock, final long[] absoluteFactors, final int[] blockSize) {
+
+		final long[] offset = new long[superBlock.numDimensions()];
+
+		for (int d = 0; d < offset.length; ++d)
+			offset[d] = superBlock.min(d) / absoluteFactors[d] / blockSize[d];
+
+		return offset;
+	}
+
+	/**
+	 * Open a pyramid written by {@link #export} as a multi-resolution source
+	 * for BigDataViewer. All levels are loaded lazily block by block.
+	 *
+	 * @param n5
+	 * @param group
+	 * @param name
+	 *            - the name of the source
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends RealType<T> & NativeType<T>> Source<T> open(final N5Reader n5, final String group, final String name) throws IOException {
+
+		final long[][] absolute = n5.getAttribute(group, "scales", long[][].class);
+		final double[] voxelSize = n5.getAttribute(group, "pixelResolution", double[].class);
+
+		final RandomAccessibleInterval<T>[] levels = new RandomAccessibleInterval[absolute.length];
+
+		for (int l = 0; l < absolute.length; ++l)
+			levels[l] = N5Utils.open(n5, group + "/s" + l);
+
+		return MipmapSources.mipmapSource(levels, Util.getTypeFromInterval(levels[0]).createVariable(), absolute, voxelSize, name);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final String path = System.getProperty("java.io.tmpdir") + "/lightsheet0.n5";
+
+		// export the stack once, the z-resolution is about 3x lower than xy
+		final N5Writer n5 = new N5FSWriter(path);
+		export(img, new double[]{1, 1, 3}, 5, new int[]{64, 64, 64}, n5, "lightsheet0", Runtime.getRuntime().availableProcessors());
+
+		// show it as a multi-resolution source
+		final Source<UnsignedByteType> source = open(new N5FSReader(path), "lightsheet0", "lightsheet0 pyramid");
+		BdvFunctions.show(source).setDisplayRange(0, 255);
+	}
+}
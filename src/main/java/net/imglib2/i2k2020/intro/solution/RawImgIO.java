@@ -0,0 +1,408 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * Save and restore ArrayImg, PlanarImg and CellImg as raw binary files by
+ * transferring their primitive arrays through a direct buffer and a
+ * FileChannel. The file starts with a small header describing byte order,
+ * container, type and dimensions, followed by all primitive arrays in the
+ * byte order of the platform that wrote them. Files written on a platform with
+ * the other byte order are swapped while loading.
+ */
+public class RawImgIO {
+
+	public static final int MAGIC = 0x494d4732; // "IMG2"
+	public static final int VERSION = 2;
+
+	public static final int BIG_ENDIAN = 0;
+	public static final int LITTLE_ENDIAN = 1;
+
+	public static final int ARRAY = 0;
+	public static final int PLANAR = 1;
+	public static final int CELL = 2;
+
+	// the size of the direct buffer used for the transfers
+	protected static final int BUFFER_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Save an ArrayImg, PlanarImg or CellImg (also cached ones) as raw file
+	 *
+	 * @param img
+	 * @param path
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T>> void save(final Img<T> img, final String path) throws IOException {
+
+		final int container;
+		final int[] cellDimensions;
+
+		if (img instanceof ArrayImg) {
+			container = ARRAY;
+			cellDimensions = new int[0];
+		} else if (img instanceof PlanarImg) {
+			container = PLANAR;
+			cellDimensions = new int[0];
+		} else if (img instanceof AbstractCellImg) {
+			container = CELL;
+			cellDimensions = new int[img.numDimensions()];
+			((AbstractCellImg<?, ?, ?, ?>)img).getCellGrid().cellDimensions(cellDimensions);
+		} else {
+			throw new IllegalArgumentException("unsupported Img: " + img.getClass().getName());
+		}
+
+		final byte[] typeName = Util.getTypeFromInterval(img).getClass().getName().getBytes(StandardCharsets.UTF_8);
+
+		try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			// the header is always big endian
+			final ByteBuffer header = ByteBuffer.allocate(4 * 6 + typeName.length + 8 * img.numDimensions() + 4 * cellDimensions.length);
+
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN : LITTLE_ENDIAN);
+			header.putInt(container);
+			header.putInt(typeName.length);
+			header.put(typeName);
+			header.putInt(img.numDimensions());
+
+			for (int d = 0; d < img.numDimensions(); ++d)
+				header.putLong(img.dimension(d));
+
+			for (final int c : cellDimensions)
+				header.putInt(c);
+
+			header.flip();
+
+			while (header.hasRemaining())
+				channel.write(header);
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+
+			for (final Object array : storageArrays(img))
+				write(channel, array, buffer);
+		}
+	}
+
+	/**
+	 * Load an image saved with {@link #save}, the container type and (for
+	 * CellImg) the cell size are restored
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T>> Img<T> load(final String path) throws IOException {
+
+		return loadAs(path, null);
+	}
+
+	/**
+	 * Load an image saved with {@link #save} and check that its pixels are of
+	 * the expected type
+	 *
+	 * @param path
+	 * @param type
+	 * @return
+	 * @throws IOException
+	 *             - also if the file contains another type
+	 */
+	public static <T extends NativeType<T>> Img<T> load(final String path, final T type) throws IOException {
+
+		return loadAs(path, type.getClass());
+	}
+
+	/**
+	 * Load an image saved with {@link #save}, the type is checked before the
+	 * pixels are read
+	 *
+	 * @param path
+	 * @param expectedType
+	 *            - the class of the pixels, or null for any type
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T extends NativeType<T>> Img<T> loadAs(final String path, final Class<?> expectedType) throws IOException {
+
+		try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+
+			final ByteBuffer header = ByteBuffer.allocate(4 * 5);
+			read(channel, header);
+
+			if (header.getInt() != MAGIC)
+				throw new IOException("'" + path + "' is not a raw image file.");
+
+			if (header.getInt() != VERSION)
+				throw new IOException("'" + path + "' has an unsupported version.");
+
+			// the byte order of the primitive arrays
+			final int byteOrder = header.getInt();
+			if (byteOrder != BIG_ENDIAN && byteOrder != LITTLE_ENDIAN)
+				throw new IOException("'" + path + "' has an unknown byte order: " + byteOrder);
+
+			final int container = header.getInt();
+			final ByteBuffer typeName = ByteBuffer.allocate(header.getInt() + 4);
+			read(channel, typeName);
+
+			final byte[] typeNameBytes = new byte[typeName.capacity() - 4];
+			typeName.get(typeNameBytes);
+
+			final int n = typeName.getInt();
+
+			final ByteBuffer dimensionsBuffer = ByteBuffer.allocate(8 * n + (container == CELL ? 4 * n : 0));
+			read(channel, dimensionsBuffer);
+
+			final long[] dimensions = new long[n];
+			for (int d = 0; d < n; ++d)
+				dimensions[d] = dimensionsBuffer.getLong();
+
+			final String typeClassName = new String(typeNameBytes, StandardCharsets.UTF_8);
+
+			if (expectedType != null && !expectedType.getName().equals(typeClassName))
+				throw new IOException("'" + path + "' contains " + typeClassName + " instead of " + expectedType.getName());
+
+			final T type;
+
+			try {
+				type = (T)Class.forName(typeClassName).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IOException("cannot instantiate type of '" + path + "': " + e, e);
+			}
+
+			final Img<T> img;
+
+			switch (container) {
+			case ARRAY:
+				img = new ArrayImgFactory<>(type).create(dimensions);
+				break;
+			case PLANAR:
+				img = new PlanarImgFactory<>(type).create(dimensions);
+				break;
+			case CELL:
+				final int[] cellDimensions = new int[n];
+				for (int d = 0; d < n; ++d)
+					cellDimensions[d] = dimensionsBuffer.getInt();
+
+				img = new CellImgFactory<>(type, cellDimensions).create(dimensions);
+				break;
+			default:
+				throw new IOException("'" + path + "' has an unknown container type: " + container);
+			}
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(byteOrder == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+			for (final Object array : storageArrays(img))
+				read(channel, array, buffer);
+
+			return img;
+		}
+	}
+
+	/**
+	 * @param img
+	 * @return the primitive arrays backing the image, in a fixed order
+	 */
+	public static List<Object> storageArrays(final Img<?> img) {
+
+		final ArrayList<Object> arrays = new ArrayList<>();
+
+		if (img instanceof ArrayImg) {
+			arrays.add(((ArrayDataAccess<?>)((ArrayImg<?, ?>)img).update(null)).getCurrentStorageArray());
+		} else if (img instanceof PlanarImg) {
+			final PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>)img;
+
+			for (int i = 0; i < planarImg.numSlices(); ++i)
+				arrays.add(((ArrayDataAccess<?>)planarImg.getPlane(i)).getCurrentStorageArray());
+		} else if (img instanceof AbstractCellImg) {
+			final Cursor<?> cells = ((AbstractCellImg<?, ?, ?, ?>)img).getCells().cursor();
+
+			while (cells.hasNext())
+				arrays.add(((ArrayDataAccess<?>)((Cell<?>)cells.next()).getData()).getCurrentStorageArray());
+		} else {
+			throw new IllegalArgumentException("unsupported Img: " + img.getClass().getName());
+		}
+
+		return arrays;
+	}
+
+	/**
+	 * @param array
+	 * @return the number of bytes per element of a primitive array
+	 */
+	protected static int bytesPerElement(final Object array) {
+
+		if (array instanceof byte[])
+			return 1;
+		else if (array instanceof short[] || array instanceof char[])
+			return 2;
+		else if (array instanceof int[] || array instanceof float[])
+			return 4;
+		else if (array instanceof long[] || array instanceof double[])
+			return 8;
+		else
+			throw new IllegalArgumentException("unsupported array: " + array.getClass().getName());
+	}
+
+	/**
+	 * @param array
+	 * @return the length of a primitive array
+	 */
+	protected static int length(final Object array) {
+
+		return Array.getLength(array);
+	}
+
+	/**
+	 * Write a primitive array through a direct buffer, chunk by chunk
+	 *
+	 * @param channel
+	 * @param array
+	 * @param buffer
+	 * @throws IOException
+	 */
+	protected static void write(final FileChannel channel, final Object array, final ByteBuffer buffer) throws IOException {
+
+		final int bytes = bytesPerElement(array);
+		final int length = length(array);
+		final int chunk = buffer.capacity() / bytes;
+
+		for (int offset = 0; offset < length; offset += chunk) {
+			final int size = Math.min(chunk, length - offset);
+
+			buffer.clear();
+
+			if (array instanceof byte[])
+				buffer.put((byte[])array, offset, size);
+			else if (array instanceof short[])
+				buffer.asShortBuffer().put((short[])array, offset, size);
+			else if (array instanceof char[])
+				buffer.asCharBuffer().put((char[])array, offset, size);
+			else if (array instanceof int[])
+				buffer.asIntBuffer().put((int[])array, offset, size);
+			else if (array instanceof float[])
+				buffer.asFloatBuffer().put((float[])array, offset, size);
+			else if (array instanceof long[])
+				buffer.asLongBuffer().put((long[])array, offset, size);
+			else
+				buffer.asDoubleBuffer().put((double[])array, offset, size);
+
+			buffer.position(0);
+			buffer.limit(size * bytes);
+
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Fill a primitive array through a direct buffer, chunk by chunk
+	 *
+	 * @param channel
+	 * @param array
+	 * @param buffer
+	 * @throws IOException
+	 */
+	protected static void read(final FileChannel channel, final Object array, final ByteBuffer buffer) throws IOException {
+
+		final int bytes = bytesPerElement(array);
+		final int length = length(array);
+		final int chunk = buffer.capacity() / bytes;
+
+		for (int offset = 0; offset < length; offset += chunk) {
+			final int size = Math.min(chunk, length - offset);
+
+			buffer.clear();
+			buffer.limit(size * bytes);
+			read(channel, buffer);
+
+			if (array instanceof byte[])
+				buffer.get((byte[])array, offset, size);
+			else if (array instanceof short[])
+				buffer.asShortBuffer().get((short[])array, offset, size);
+			else if (array instanceof char[])
+				buffer.asCharBuffer().get((char[])array, offset, size);
+			else if (array instanceof int[])
+				buffer.asIntBuffer().get((int[])array, offset, size);
+			else if (array instanceof float[])
+				buffer.asFloatBuffer().get((float[])array, offset, size);
+			else if (array instanceof long[])
+				buffer.asLongBuffer().get((long[])array, offset, size);
+			else
+				buffer.asDoubleBuffer().get((double[])array, offset, size);
+		}
+	}
+
+	/**
+	 * Fill the remaining bytes of a buffer and flip it for reading
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @throws IOException
+	 */
+	protected static void read(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new IOException("unexpected end of file.");
+
+		buffer.flip();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		// a 1024x1024x512 float volume (2GB), 2^29 floats in 512 planes
+		final Img<FloatType> img = PlanarImgs.floats(1024, 1024, 512);
+
+		final Random rnd = new Random(42);
+		for (final FloatType t : img)
+			t.set(rnd.nextFloat());
+
+		final String path = System.getProperty("java.io.tmpdir") + "/checkpoint.raw";
+
+		long time = System.currentTimeMillis();
+		save(img, path);
+		System.out.println("saved in " + (System.currentTimeMillis() - time) + " ms.");
+
+		time = System.currentTimeMillis();
+		final Img<FloatType> restored = load(path);
+		System.out.println("loaded " + restored + " in " + (System.currentTimeMillis() - time) + " ms.");
+
+		// compare both images
+		final Cursor<FloatType> c1 = img.cursor();
+		final Cursor<FloatType> c2 = restored.cursor();
+
+		while (c1.hasNext())
+			if (c1.next().get() != c2.next().get()) {
+				System.out.println("restored image differs @ " + Util.printCoordinates(c1));
+				return;
+			}
+
+		System.out.println("restored image is identical.");
+	}
+}
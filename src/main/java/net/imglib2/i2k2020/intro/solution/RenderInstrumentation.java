@@ -0,0 +1,210 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.awt.Graphics2D;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvOverlay;
+import bdv.util.BdvStackSource;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Source;
+import ij.IJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Show sources in BigDataViewer with per-source render metrics. Whenever the
+ * viewer paints the result of a render pass (including the refinement passes
+ * that fill in volatile data), the pixels sampled from each source, the
+ * duration of the pass and how many volatile samples were valid or invalid are
+ * reported to a listener and, optionally, as JDK Flight Recorder events.
+ * Passes that Swing coalesces into one paint are reported together.
+ */
+public class RenderInstrumentation {
+
+	/**
+	 * Is notified after every render pass that BigDataViewer painted
+	 */
+	public interface RenderListener {
+
+		void frameRendered(InstrumentedSource.FrameStatistics statistics);
+	}
+
+	/**
+	 * Show a RandomAccessibleInterval instrumented
+	 *
+	 * @param img
+	 * @param name
+	 * @param options
+	 * @param listener
+	 *            - receives the statistics of every frame, can be null
+	 * @param recordJfrEvents
+	 *            - whether to also emit JDK Flight Recorder events
+	 * @return
+	 */
+	public static <T extends NumericType<T>> BdvStackSource<T> show(
+			final RandomAccessibleInterval<T> img,
+			final String name,
+			final BdvOptions options,
+			final RenderListener listener,
+			final boolean recordJfrEvents) {
+
+		// BigDataViewer sources are always 3d
+		final RandomAccessibleInterval<T> img3d = img.numDimensions() == 2 ? Views.addDimension(img, 0, 0) : img;
+
+		final Source<T> source = new RandomAccessibleIntervalSource<>(img3d, Util.getTypeFromInterval(img3d).createVariable(), name);
+
+		return show(source, options, listener, recordJfrEvents);
+	}
+
+	/**
+	 * Show a source instrumented
+	 *
+	 * @param source
+	 * @param options
+	 * @param listener
+	 *            - receives the statistics of every frame, can be null
+	 * @param recordJfrEvents
+	 *            - whether to also emit JDK Flight Recorder events
+	 * @return
+	 */
+	public static <T> BdvStackSource<T> show(
+			final Source<T> source,
+			final BdvOptions options,
+			final RenderListener listener,
+			final boolean recordJfrEvents) {
+
+		final InstrumentedSource<T> instrumented = new InstrumentedSource<>(source);
+		final BdvStackSource<T> bdv = BdvFunctions.show(instrumented, options);
+
+		// overlays are drawn every time the display is painted, which the
+		// renderer triggers after every pass
+		BdvFunctions.showOverlay(new BdvOverlay() {
+
+			@Override
+			protected void draw(final Graphics2D g) {
+
+				final InstrumentedSource.FrameStatistics statistics = instrumented.collect();
+
+				// repaints without rendering, e.g. when the window is exposed
+				if (statistics.pixels == 0)
+					return;
+
+				if (listener != null)
+					listener.frameRendered(statistics);
+
+				if (recordJfrEvents)
+					JfrEvents.commit(statistics);
+			}
+		}, source.getName() + " render statistics", BdvOptions.options().addTo(bdv));
+
+		return bdv;
+	}
+
+	/**
+	 * Emits JDK Flight Recorder events. The project targets Java 8, so the
+	 * event type is defined at runtime through jdk.jfr.EventFactory if the JVM
+	 * provides it, otherwise nothing is recorded.
+	 */
+	protected static class JfrEvents {
+
+		private static final Object factory;
+		private static final Method newEvent, set, commit;
+
+		static {
+			Object f = null;
+			Method n = null, s = null, c = null;
+
+			try {
+				final Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+				final Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+				final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+				final Class<?> event = Class.forName("jdk.jfr.Event");
+
+				final Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+				final Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+
+				final List<Object> annotations = Arrays.asList(
+						annotation.newInstance(Class.forName("jdk.jfr.Name").asSubclass(Annotation.class), "net.imglib2.RenderFrame"),
+						annotation.newInstance(Class.forName("jdk.jfr.Label").asSubclass(Annotation.class), "Render Frame"),
+						annotation.newInstance(Class.forName("jdk.jfr.Category").asSubclass(Annotation.class), new String[]{"BigDataViewer"}));
+
+				final List<Object> fields = Arrays.asList(
+						field.newInstance(String.class, "source"),
+						field.newInstance(long.class, "pixels"),
+						field.newInstance(long.class, "nanos"),
+						field.newInstance(long.class, "validSamples"),
+						field.newInstance(long.class, "invalidSamples"));
+
+				f = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+				n = eventFactory.getMethod("newEvent");
+				s = event.getMethod("set", int.class, Object.class);
+				c = event.getMethod("commit");
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				f = null;
+			}
+
+			factory = f;
+			newEvent = n;
+			set = s;
+			commit = c;
+		}
+
+		public static boolean isAvailable() {
+
+			return factory != null;
+		}
+
+		public static void commit(final InstrumentedSource.FrameStatistics statistics) {
+
+			if (!isAvailable())
+				return;
+
+			try {
+				final Object event = newEvent.invoke(factory);
+
+				set.invoke(event, 0, statistics.source);
+				set.invoke(event, 1, statistics.pixels);
+				set.invoke(event, 2, statistics.nanos);
+				set.invoke(event, 3, statistics.validSamples);
+				set.invoke(event, 4, statistics.invalidSamples);
+
+				commit.invoke(event);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// recording is best effort
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final RenderListener printer = statistics -> System.out.println(statistics);
+
+		// the sources of ComplexTask1_Thresholding.testThresholding
+		final RandomAccessibleInterval<BitType> segmented = ComplexTask1_Thresholding.threshold(blobs, new UnsignedByteType(128));
+
+		BdvStackSource<?> bdv;
+		BdvOptions options = new BdvOptions().is2D();
+
+		bdv = show(blobs, "input", options, printer, true);
+		bdv.setColor(new ARGBType(ARGBType.rgba(0, 255, 0, 0)));
+
+		bdv = show(segmented, "segmented", options.addTo(bdv), printer, true);
+		bdv.setColor(new ARGBType(ARGBType.rgba(255, 0, 255, 0)));
+	}
+}
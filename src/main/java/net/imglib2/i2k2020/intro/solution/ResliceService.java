@@ -0,0 +1,303 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Serves orthogonal slices (hyperslices along any axis) of an image from
+ * per-axis caches of recently used slices, and computes the neighboring slices
+ * in the background so that scrolling does not wait. Slices of a CellImg are
+ * computed a whole slab of cells at a time, every cell is read once and fills
+ * all slices it intersects. The slices are shared by all callers and returned
+ * read-only.
+ *
+ * @param <T>
+ */
+public class ResliceService<T extends NativeType<T>> {
+
+	protected final RandomAccessibleInterval<T> img;
+	protected final T type;
+	protected final int prefetchRadius;
+
+	// per axis: slice position > slice, in least recently used order
+	protected final List<Map<Long, CompletableFuture<Img<T>>>> caches = new ArrayList<>();
+
+	protected final ExecutorService prefetcher;
+
+	/**
+	 * @param img
+	 * @param cacheSize
+	 *            - how many slices are kept per axis, for a CellImg at least
+	 *            one slab of cells is kept
+	 * @param prefetchRadius
+	 *            - how many neighboring slices on each side are computed in
+	 *            the background
+	 * @param numThreads
+	 *            - the number of background threads
+	 */
+	public ResliceService(final RandomAccessibleInterval<T> img, final int cacheSize, final int prefetchRadius, final int numThreads) {
+
+		this.img = img;
+		this.type = Util.getTypeFromInterval(img).createVariable();
+		this.prefetchRadius = prefetchRadius;
+
+		for (int d = 0; d < img.numDimensions(); ++d) {
+			// a slab that is being computed must not evict its own slices
+			final int axisCacheSize = img instanceof AbstractCellImg ?
+					Math.max(cacheSize, ((AbstractCellImg<?, ?, ?, ?>)img).getCellGrid().cellDimension(d)) :
+					cacheSize;
+
+			caches.add(new LinkedHashMap<Long, CompletableFuture<Img<T>>>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Long, CompletableFuture<Img<T>>> eldest) {
+
+					return size() > axisCacheSize;
+				}
+			});
+		}
+
+		this.prefetcher = Executors.newFixedThreadPool(numThreads);
+	}
+
+	/**
+	 * Get a slice and start computing its neighbors in the background
+	 *
+	 * @param axis
+	 * @param position
+	 * @return the slice, zero-min and read-only because it is cached for all
+	 *         callers
+	 */
+	public RandomAccessibleInterval<T> getSlice(final int axis, final long position) {
+
+		final CompletableFuture<Img<T>> slice = request(axis, position);
+
+		for (int i = 1; i <= prefetchRadius; ++i) {
+			final long before = position - i;
+			final long after = position + i;
+
+			if (before >= img.min(axis))
+				prefetcher.submit(() -> request(axis, before));
+
+			if (after <= img.max(axis))
+				prefetcher.submit(() -> request(axis, after));
+		}
+
+		try {
+			return Converters.convert((RandomAccessibleInterval<T>)slice.get(), (i, o) -> o.set(i), type);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("failed to compute slice " + position + " along axis " + axis + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Stop the background threads
+	 */
+	public void shutdown() {
+
+		prefetcher.shutdownNow();
+	}
+
+	/**
+	 * Return the cached slice or compute it (and, for CellImgs, all other
+	 * slices of its slab of cells) in the calling thread
+	 *
+	 * @param axis
+	 * @param position
+	 * @return
+	 */
+	protected CompletableFuture<Img<T>> request(final int axis, final long position) {
+
+		final Map<Long, CompletableFuture<Img<T>>> cache = caches.get(axis);
+
+		final long first, last;
+
+		if (img instanceof AbstractCellImg) {
+			final int cellSize = ((AbstractCellImg<?, ?, ?, ?>)img).getCellGrid().cellDimension(axis);
+
+			first = img.min(axis) + (position - img.min(axis)) / cellSize * cellSize;
+			last = Math.min(first + cellSize - 1, img.max(axis));
+		} else {
+			first = last = position;
+		}
+
+		// the slices this call is responsible for
+		final LinkedHashMap<Long, CompletableFuture<Img<T>>> computing = new LinkedHashMap<>();
+		final CompletableFuture<Img<T>> requested;
+
+		synchronized (cache) {
+			final CompletableFuture<Img<T>> cached = cache.get(position);
+
+			if (cached != null)
+				return cached;
+
+			for (long p = first; p <= last; ++p) {
+				if (!cache.containsKey(p)) {
+					final CompletableFuture<Img<T>> future = new CompletableFuture<>();
+					cache.put(p, future);
+					computing.put(p, future);
+				}
+			}
+
+			requested = computing.get(position);
+		}
+
+		try {
+			if (img instanceof AbstractCellImg)
+				computeSlab(axis, first, last, computing);
+			else
+				computing.get(position).complete(computeSlice(axis, position));
+		} catch (RuntimeException e) {
+			synchronized (cache) {
+				for (final Long p : computing.keySet())
+					cache.remove(p);
+			}
+
+			for (final CompletableFuture<Img<T>> future : computing.values())
+				future.completeExceptionally(e);
+		}
+
+		return requested;
+	}
+
+	protected Img<T> createSlice(final int axis) {
+
+		final long[] dimensions = new long[img.numDimensions() - 1];
+
+		for (int d = 0, e = 0; d < img.numDimensions(); ++d)
+			if (d != axis)
+				dimensions[e++] = img.dimension(d);
+
+		return new ArrayImgFactory<>(type).create(dimensions);
+	}
+
+	protected Img<T> computeSlice(final int axis, final long position) {
+
+		final Img<T> slice = createSlice(axis);
+		Blocks.copy(Views.zeroMin(Views.hyperSlice(img, axis, position)), slice);
+
+		return slice;
+	}
+
+	/**
+	 * Read all cells of a slab once and distribute their pixels to the slices
+	 *
+	 * @param axis
+	 * @param first
+	 *            - the first slice position of the slab
+	 * @param last
+	 *            - the last slice position of the slab
+	 * @param slices
+	 *            - the slices to compute
+	 */
+	protected void computeSlab(final int axis, final long first, final long last, final Map<Long, CompletableFuture<Img<T>>> slices) {
+
+		final int n = img.numDimensions();
+
+		final long[] min = Intervals.minAsLongArray(img);
+		final long[] max = Intervals.maxAsLongArray(img);
+		min[axis] = first;
+		max[axis] = last;
+
+		@SuppressWarnings("unchecked")
+		final RandomAccess<T>[] accesses = new RandomAccess[(int)(last - first + 1)];
+		final List<Img<T>> imgs = new ArrayList<>();
+
+		for (long p = first; p <= last; ++p) {
+			if (slices.containsKey(p)) {
+				final Img<T> slice = createSlice(axis);
+				imgs.add(slice);
+				accesses[(int)(p - first)] = slice.randomAccess();
+			}
+		}
+
+		final int[] cellDimensions = new int[n];
+		((AbstractCellImg<?, ?, ?, ?>)img).getCellGrid().cellDimensions(cellDimensions);
+
+		// cells are aligned with the slab, so every block is one cell
+		for (final Interval cell : Blocks.split(new FinalInterval(min, max), cellDimensions)) {
+			final Cursor<T> cursor = Views.flatIterable(Views.interval(img, cell)).localizingCursor();
+
+			while (cursor.hasNext()) {
+				final T t = cursor.next();
+				final RandomAccess<T> access = accesses[(int)(cursor.getLongPosition(axis) - first)];
+
+				if (access == null)
+					continue;
+
+				for (int d = 0, e = 0; d < n; ++d)
+					if (d != axis)
+						access.setPosition(cursor.getLongPosition(d) - min[d], e++);
+
+				access.get().set(t);
+			}
+		}
+
+		int i = 0;
+		for (final CompletableFuture<Img<T>> future : slices.values())
+			future.complete(imgs.get(i++));
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> imp = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// a CellImg copy of the stack
+		final Img<UnsignedByteType> img = new CellImgFactory<>(new UnsignedByteType(), 64).create(imp);
+		Blocks.copy(imp, img);
+
+		final ResliceService<UnsignedByteType> service = new ResliceService<>(img, 128, 8, Runtime.getRuntime().availableProcessors());
+
+		// scroll through the yz slices
+		long time = System.currentTimeMillis();
+
+		for (long x = 0; x < img.dimension(0); ++x)
+			Blocks.copy(Views.zeroMin(Views.hyperSlice(img, 0, x)), new ArrayImgFactory<>(new UnsignedByteType()).create(img.dimension(1), img.dimension(2)));
+
+		System.out.println("hyperslices: " + (System.currentTimeMillis() - time) + " ms");
+
+		time = System.currentTimeMillis();
+
+		for (long x = 0; x < img.dimension(0); ++x)
+			service.getSlice(0, x);
+
+		System.out.println("reslice service: " + (System.currentTimeMillis() - time) + " ms");
+
+		// show the central slice in all dimensions as in
+		// Task7_Views.hyperSlicing
+		for (int d = 0; d < img.numDimensions(); ++d)
+			ImageJFunctions.show(service.getSlice(d, img.dimension(d) / 2)).setTitle("cut " + d);
+
+		service.shutdown();
+	}
+}
@@ -0,0 +1,353 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Consumer;
+
+import ij.IJ;
+import net.imglib2.AbstractCursor;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * A read-only cursor that iterates a CellImg in flat (row-major) order like
+ * Views.flatIterable, but copies every row from the cells it crosses into a
+ * line buffer with System.arraycopy and serves the pixels from there, instead
+ * of locating every pixel with a RandomAccess. Writing to the pixels only
+ * changes the buffer.
+ *
+ * @param <T>
+ */
+public class RowBufferedCursor<T extends NativeType<T>> extends AbstractCursor<T> {
+
+	protected final AbstractCellImg<T, ?, ?, ?> img;
+	protected final long firstRow, lastRow;
+
+	protected final RandomAccess<? extends Cell<?>> cells;
+	protected final int[] cellDimensions;
+	protected final int width;
+
+	protected final ArrayImg<T, ?> buffer;
+	protected final Object bufferArray;
+	protected final RandomAccess<T> bufferAccess;
+
+	// the current row and the position in it
+	protected long row;
+	protected final long[] rowPosition;
+	protected int x;
+
+	/**
+	 * Iterate all rows
+	 *
+	 * @param img
+	 */
+	public RowBufferedCursor(final AbstractCellImg<T, ?, ?, ?> img) {
+
+		this(img, 0, numRows(img) - 1);
+	}
+
+	/**
+	 * Iterate a range of rows, rows are numbered in flat order of all
+	 * dimensions but the first
+	 *
+	 * @param img
+	 * @param firstRow
+	 * @param lastRow
+	 */
+	public RowBufferedCursor(final AbstractCellImg<T, ?, ?, ?> img, final long firstRow, final long lastRow) {
+
+		super(img.numDimensions());
+
+		this.img = img;
+		this.firstRow = firstRow;
+		this.lastRow = lastRow;
+
+		this.cells = img.getCells().randomAccess();
+		this.cellDimensions = new int[n];
+		img.getCellGrid().cellDimensions(cellDimensions);
+		this.width = (int)img.dimension(0);
+
+		this.buffer = new ArrayImgFactory<>(img.firstElement().createVariable()).create(width);
+		this.bufferArray = ((ArrayDataAccess<?>)buffer.update(null)).getCurrentStorageArray();
+		this.bufferAccess = buffer.randomAccess();
+
+		this.rowPosition = new long[n];
+
+		reset();
+	}
+
+	/**
+	 * Copy the state of a cursor, including its row buffer
+	 *
+	 * @param cursor
+	 */
+	protected RowBufferedCursor(final RowBufferedCursor<T> cursor) {
+
+		super(cursor.numDimensions());
+
+		this.img = cursor.img;
+		this.firstRow = cursor.firstRow;
+		this.lastRow = cursor.lastRow;
+
+		this.cells = cursor.cells.copyRandomAccess();
+		this.cellDimensions = cursor.cellDimensions;
+		this.width = cursor.width;
+
+		this.buffer = new ArrayImgFactory<>(img.firstElement().createVariable()).create(width);
+		this.bufferArray = ((ArrayDataAccess<?>)buffer.update(null)).getCurrentStorageArray();
+		this.bufferAccess = buffer.randomAccess();
+
+		System.arraycopy(cursor.bufferArray, 0, bufferArray, 0, width);
+
+		this.row = cursor.row;
+		this.rowPosition = cursor.rowPosition.clone();
+		this.x = cursor.x;
+
+		bufferAccess.setPosition(x, 0);
+	}
+
+	/**
+	 * @param img
+	 * @return the number of rows, i.e. the number of pixels in all dimensions
+	 *         but the first
+	 */
+	public static long numRows(final Interval img) {
+
+		long numRows = 1;
+
+		for (int d = 1; d < img.numDimensions(); ++d)
+			numRows *= img.dimension(d);
+
+		return numRows;
+	}
+
+	/**
+	 * @param img
+	 * @return whether a row-buffered cursor can be used for the image
+	 */
+	public static boolean isSupported(final RandomAccessibleInterval<?> img) {
+
+		if (!(img instanceof AbstractCellImg))
+			return false;
+
+		final AbstractCellImg<?, ?, ?, ?> cellImg = (AbstractCellImg<?, ?, ?, ?>)img;
+
+		return cellImg.firstElement() instanceof NativeType &&
+				((NativeType<?>)cellImg.firstElement()).getEntitiesPerPixel().getRatio() == 1 &&
+				cellImg.getCells().randomAccess().get().getData() instanceof ArrayDataAccess;
+	}
+
+	/**
+	 * A flat-order cursor for reading, row-buffered if possible. The pixels of
+	 * a row-buffered cursor are copies, so writing to them does not change the
+	 * image; use Views.flatIterable to write.
+	 *
+	 * @param img
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>> Cursor<T> flatReadCursor(final RandomAccessibleInterval<T> img) {
+
+		if (isSupported(img))
+			return new RowBufferedCursor<>((AbstractCellImg<T, ?, ?, ?>)img);
+
+		return Views.flatIterable(img).cursor();
+	}
+
+	/**
+	 * Read a CellImg in flat order in parallel, every task gets a read-only
+	 * cursor over a contiguous range of rows
+	 *
+	 * @param img
+	 * @param numTasks
+	 *            - how many row ranges the image is split into
+	 * @param task
+	 */
+	public static <T extends NativeType<T>> void forEachRowRange(
+			final AbstractCellImg<T, ?, ?, ?> img,
+			final int numTasks,
+			final Consumer<Cursor<T>> task) {
+
+		final long numRows = numRows(img);
+		final long rowsPerTask = (numRows + numTasks - 1) / numTasks;
+
+		// the row ranges as 1d intervals
+		final List<Interval> ranges = new ArrayList<>();
+		for (long first = 0; first < numRows; first += rowsPerTask)
+			ranges.add(new FinalInterval(new long[]{first}, new long[]{Math.min(first + rowsPerTask, numRows) - 1}));
+
+		Blocks.forEach(ranges, range -> task.accept(new RowBufferedCursor<>(img, range.min(0), range.max(0))));
+	}
+
+	/**
+	 * Copy the current row from all cells it crosses into the buffer
+	 */
+	protected void loadRow() {
+
+		// the position of the cells and the offset of the row in them
+		final long[] cellPosition = new long[n];
+
+		for (int d = 1; d < n; ++d)
+			cellPosition[d] = rowPosition[d] / cellDimensions[d];
+
+		for (int cx = 0; cx * cellDimensions[0] < width; ++cx) {
+			cellPosition[0] = cx;
+			cells.setPosition(cellPosition);
+
+			final Cell<?> cell = cells.get();
+			final Object array = ((ArrayDataAccess<?>)cell.getData()).getCurrentStorageArray();
+
+			int offset = 0;
+			int stride = (int)cell.dimension(0);
+
+			for (int d = 1; d < n; ++d) {
+				offset += (rowPosition[d] - cell.min(d)) * stride;
+				stride *= cell.dimension(d);
+			}
+
+			System.arraycopy(array, offset, bufferArray, cx * cellDimensions[0], (int)cell.dimension(0));
+		}
+	}
+
+	@Override
+	public T get() {
+
+		return bufferAccess.get();
+	}
+
+	@Override
+	public void fwd() {
+
+		if (++x < width) {
+			bufferAccess.fwd(0);
+			return;
+		}
+
+		// next row
+		x = 0;
+		++row;
+
+		for (int d = 1; d < n; ++d) {
+			if (++rowPosition[d] < img.dimension(d))
+				break;
+			rowPosition[d] = 0;
+		}
+
+		loadRow();
+		bufferAccess.setPosition(0, 0);
+	}
+
+	@Override
+	public void reset() {
+
+		row = firstRow;
+
+		// the position of the first row
+		long r = firstRow;
+		for (int d = 1; d < n; ++d) {
+			rowPosition[d] = r % img.dimension(d);
+			r /= img.dimension(d);
+		}
+
+		if (firstRow <= lastRow)
+			loadRow();
+
+		// before the first pixel
+		x = -1;
+		bufferAccess.setPosition(-1, 0);
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		return row < lastRow || (row == lastRow && x < width - 1);
+	}
+
+	@Override
+	public void localize(final long[] position) {
+
+		position[0] = x;
+
+		for (int d = 1; d < n; ++d)
+			position[d] = rowPosition[d];
+	}
+
+	@Override
+	public long getLongPosition(final int d) {
+
+		return d == 0 ? x : rowPosition[d];
+	}
+
+	@Override
+	public RowBufferedCursor<T> copy() {
+
+		return new RowBufferedCursor<>(this);
+	}
+
+	@Override
+	public RowBufferedCursor<T> copyCursor() {
+
+		return copy();
+	}
+
+	/**
+	 * Sum all pixels and report the time it took
+	 *
+	 * @param cursor
+	 * @param name
+	 */
+	public static <T extends RealType<T>> void benchmark(final Cursor<T> cursor, final String name) {
+
+		final long start = System.currentTimeMillis();
+
+		double sum = 0;
+		while (cursor.hasNext())
+			sum += cursor.next().getRealDouble();
+
+		System.out.println(name + ": " + (System.currentTimeMillis() - start) + " ms (checksum " + sum + ")");
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> imp = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// the cell image of Task7_Views.makeIterable, with a realistic size
+		final Img<UnsignedByteType> img = new CellImgFactory<>(new UnsignedByteType(), 32).create(imp);
+		Blocks.copy(imp, img);
+
+		for (int i = 0; i < 3; ++i) {
+			benchmark(Views.flatIterable(img).cursor(), "Views.flatIterable");
+			benchmark(flatReadCursor(img), "row-buffered");
+		}
+
+		// the same order in parallel
+		final DoubleAdder sum = new DoubleAdder();
+		final long start = System.currentTimeMillis();
+
+		forEachRowRange((AbstractCellImg<UnsignedByteType, ?, ?, ?>)img, 4 * Runtime.getRuntime().availableProcessors(), cursor -> {
+			double rangeSum = 0;
+			while (cursor.hasNext())
+				rangeSum += cursor.next().getRealDouble();
+
+			sum.add(rangeSum);
+		});
+
+		System.out.println("row-buffered, parallel: " + (System.currentTimeMillis() - start) + " ms (checksum " + sum.sum() + ")");
+	}
+}
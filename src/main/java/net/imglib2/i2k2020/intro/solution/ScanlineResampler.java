@@ -0,0 +1,238 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Rasterizes an affinely transformed image line by line. Instead of
+ * transforming every target pixel, the source coordinate of the first pixel of
+ * a line is transformed and the others are offset from it by multiples of a
+ * constant delta per pixel. The source coordinates of a line are interpolated
+ * in one batch (see BatchInterpolation), so consecutive samples in the same
+ * source pixel or cell reuse its neighborhood, and the lines are processed in
+ * parallel.
+ */
+public class ScanlineResampler {
+
+	/**
+	 * Resample a source into a target, equivalent to copying
+	 * Views.raster(RealViews.affine(Views.interpolate(source, ...),
+	 * transform)) into the target
+	 *
+	 * @param source
+	 *            - must be defined where the target is mapped to, e.g.
+	 *            extended
+	 * @param transform
+	 *            - from source to target coordinates
+	 * @param method
+	 * @param target
+	 * @param numThreads
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void resample(
+			final RandomAccessible<T> source,
+			final AffineGet transform,
+			final BatchInterpolation.Method method,
+			final RandomAccessibleInterval<S> target,
+			final int numThreads) {
+
+		final int n = target.numDimensions();
+		final long numLines = RowBufferedCursor.numRows(target);
+
+		// target to source, and the source step per target pixel along a line
+		final AffineGet inverse = transform.inverse();
+		final double[] delta = new double[n];
+		inverse.d(0).localize(delta);
+
+		// the lines in chunks as 1d intervals
+		final long linesPerTask = Math.max(1, (numLines + 4 * numThreads - 1) / (4 * numThreads));
+
+		final List<Interval> chunks = new ArrayList<>();
+		for (long first = 0; first < numLines; first += linesPerTask)
+			chunks.add(new FinalInterval(new long[]{first}, new long[]{Math.min(first + linesPerTask, numLines) - 1}));
+
+		// the kernel table is shared by all tasks
+		final TableLanczosInterpolator.Factory<T> lanczos = new TableLanczosInterpolator.Factory<>();
+
+		Blocks.forEach(
+				chunks,
+				chunk -> resampleLines(source, inverse, delta, method, lanczos, target, chunk.min(0), chunk.max(0)),
+				numThreads);
+	}
+
+	/**
+	 * Resample lines of a target in the calling thread
+	 *
+	 * @param source
+	 * @param inverse
+	 *            - from target to source coordinates
+	 * @param delta
+	 *            - the source step per target pixel along a line
+	 * @param method
+	 * @param lanczos
+	 *            - creates the interpolator for Method.LANCZOS
+	 * @param target
+	 * @param firstLine
+	 *            - lines are numbered in flat order of all dimensions but the
+	 *            first
+	 * @param lastLine
+	 */
+	protected static <T extends RealType<T>, S extends RealType<S>> void resampleLines(
+			final RandomAccessible<T> source,
+			final AffineGet inverse,
+			final double[] delta,
+			final BatchInterpolation.Method method,
+			final TableLanczosInterpolator.Factory<T> lanczos,
+			final RandomAccessibleInterval<S> target,
+			final long firstLine,
+			final long lastLine) {
+
+		final int n = target.numDimensions();
+		final int width = (int)target.dimension(0);
+
+		final RandomAccess<T> sourceAccess = source.randomAccess();
+		final RealRandomAccess<T> lanczosAccess = method == BatchInterpolation.Method.LANCZOS ? lanczos.create(source) : null;
+		final RandomAccess<S> targetAccess = target.randomAccess();
+
+		final double[] start = new double[n];
+		final double[] sourceStart = new double[n];
+		final double[][] coordinates = new double[n][width];
+		final double[] values = new double[width];
+
+		for (long l = firstLine; l <= lastLine; ++l) {
+			// the first pixel of line l
+			start[0] = target.min(0);
+
+			long r = l;
+			for (int d = 1; d < n; ++d) {
+				start[d] = target.min(d) + r % target.dimension(d);
+				r /= target.dimension(d);
+			}
+
+			inverse.apply(start, sourceStart);
+
+			// the source coordinates of the line, from the first pixel and the
+			// step instead of summing the steps, so the rounding errors do not
+			// accumulate along the line
+			for (int d = 0; d < n; ++d) {
+				final double[] c = coordinates[d];
+				final double first = sourceStart[d];
+				final double step = delta[d];
+
+				for (int x = 0; x < width; ++x)
+					c[x] = first + x * step;
+			}
+
+			switch (method) {
+			case NEAREST_NEIGHBOR:
+				BatchInterpolation.nearestNeighbor(sourceAccess, coordinates, values, 0, width - 1);
+				break;
+			case NLINEAR:
+				BatchInterpolation.nLinear(sourceAccess, coordinates, values, 0, width - 1);
+				break;
+			default:
+				BatchInterpolation.interpolate(lanczosAccess, coordinates, values, 0, width - 1);
+			}
+
+			for (int d = 0; d < n; ++d)
+				targetAccess.setPosition((long)start[d], d);
+
+			for (int x = 0; x < width; ++x) {
+				targetAccess.get().setReal(values[x]);
+				targetAccess.fwd(0);
+			}
+		}
+	}
+
+	/**
+	 * Resample a source into a new image
+	 *
+	 * @param source
+	 * @param transform
+	 *            - from source to target coordinates
+	 * @param method
+	 * @param interval
+	 *            - the target interval
+	 * @param numThreads
+	 * @return the resampled image, with the min of the interval
+	 */
+	public static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> resample(
+			final RandomAccessible<T> source,
+			final AffineGet transform,
+			final BatchInterpolation.Method method,
+			final Interval interval,
+			final int numThreads) {
+
+		final T type = source.randomAccess().get().createVariable();
+		final RandomAccessibleInterval<T> target = Views.translate(
+				new ArrayImgFactory<>(type).create(interval),
+				Intervals.minAsLongArray(interval));
+
+		resample(source, transform, method, target, numThreads);
+
+		return target;
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// the rotation of Task9_RealViews.rotation, magnified so it takes a
+		// while
+		final AffineTransform2D transform = new AffineTransform2D();
+		transform.rotate(Math.toRadians(45));
+		transform.scale(8);
+
+		final Interval interval = Intervals.union(
+				Intervals.largestContainedInterval(transform.estimateBounds(blobs)),
+				blobs);
+
+		final RandomAccessible<UnsignedByteType> extended = Views.extendZero(blobs);
+
+		RandomAccessibleInterval<UnsignedByteType> resampled = null;
+
+		for (int i = 0; i < 3; ++i) {
+			long time = System.currentTimeMillis();
+
+			final Img<UnsignedByteType> rastered = new ArrayImgFactory<>(new UnsignedByteType()).create(interval);
+			Blocks.copy(
+					Views.zeroMin(Views.interval(Views.raster(RealViews.affine(Views.interpolate(extended, new NLinearInterpolatorFactory<>()), transform)), interval)),
+					rastered,
+					new int[]{256, 256});
+
+			System.out.println("Views.raster: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			resampled = resample(extended, transform, BatchInterpolation.Method.NLINEAR, interval, numThreads);
+			System.out.println("scanlines: " + (System.currentTimeMillis() - time) + " ms");
+		}
+
+		ImageJFunctions.show(resampled).setTitle("rotated");
+	}
+}
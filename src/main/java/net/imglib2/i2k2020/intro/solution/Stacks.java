@@ -0,0 +1,354 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.AbstractInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Stack n-1 dimensional images into an n dimensional image like Views.stack,
+ * but the RandomAccess only creates an access for a slice once it is visited
+ * and switches between slices in constant time. Stacks can also be
+ * materialized into a PlanarImg in parallel, one slice per task.
+ */
+public class Stacks {
+
+	/**
+	 * Stack images, all of them must have the same interval
+	 *
+	 * @param slices
+	 * @return the stack, the last dimension is the slice index starting at 0
+	 */
+	public static <T> RandomAccessibleInterval<T> stack(final List<? extends RandomAccessibleInterval<T>> slices) {
+
+		return new SliceStack<>(slices);
+	}
+
+	/**
+	 * Collect every step-th hyperslice along the last dimension, e.g. every
+	 * 10th plane of a 3d image
+	 *
+	 * @param img
+	 * @param step
+	 * @return
+	 */
+	public static <T> List<RandomAccessibleInterval<T>> hyperSlices(final RandomAccessibleInterval<T> img, final int step) {
+
+		final int d = img.numDimensions() - 1;
+		final ArrayList<RandomAccessibleInterval<T>> hyperSlices = new ArrayList<>();
+
+		for (long pos = img.min(d); pos <= img.max(d); pos += step)
+			hyperSlices.add(Views.hyperSlice(img, d, pos));
+
+		return hyperSlices;
+	}
+
+	/**
+	 * Compute every slice into its own part of a PlanarImg in parallel
+	 *
+	 * @param slices
+	 *            - all with the same interval, typically virtual
+	 * @param numThreads
+	 * @return the stacked image (zero-min)
+	 */
+	public static <T extends NativeType<T>> PlanarImg<T, ?> materialize(
+			final List<? extends RandomAccessibleInterval<T>> slices,
+			final int numThreads) {
+
+		final RandomAccessibleInterval<T> first = slices.get(0);
+		final int n = first.numDimensions();
+
+		final long[] dimensions = new long[n + 1];
+		first.dimensions(dimensions);
+		dimensions[n] = slices.size();
+
+		final PlanarImg<T, ?> img = new PlanarImgFactory<>(Util.getTypeFromInterval(first).createVariable()).create(dimensions);
+
+		// one block per slice
+		final int[] blockSize = new int[n + 1];
+		for (int d = 0; d < n; ++d)
+			blockSize[d] = (int)dimensions[d];
+		blockSize[n] = 1;
+
+		final long[] min = Intervals.minAsLongArray(first);
+
+		Blocks.forEach(Blocks.split(img, blockSize), block -> {
+			final int z = (int)block.min(n);
+
+			Blocks.copy(slices.get(z), Views.translate(Views.hyperSlice(img, n, z), min));
+		}, numThreads);
+
+		return img;
+	}
+
+	/**
+	 * A stack of images that share the same interval
+	 *
+	 * @param <T>
+	 */
+	public static class SliceStack<T> extends AbstractInterval implements RandomAccessibleInterval<T> {
+
+		protected final List<? extends RandomAccessibleInterval<T>> slices;
+
+		public SliceStack(final List<? extends RandomAccessibleInterval<T>> slices) {
+
+			super(stackInterval(slices.get(0), slices.size()));
+
+			this.slices = slices;
+		}
+
+		protected static Interval stackInterval(final Interval first, final int numSlices) {
+
+			final int n = first.numDimensions();
+			final long[] min = new long[n + 1];
+			final long[] max = new long[n + 1];
+
+			for (int d = 0; d < n; ++d) {
+				min[d] = first.min(d);
+				max[d] = first.max(d);
+			}
+
+			max[n] = numSlices - 1;
+
+			return new FinalInterval(min, max);
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess() {
+
+			return new SliceStackRandomAccess<>(slices);
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess(final Interval interval) {
+
+			return randomAccess();
+		}
+	}
+
+	/**
+	 * Moves the access of the current slice, accesses of other slices are
+	 * created on first visit and positioned when their slice is selected
+	 *
+	 * @param <T>
+	 */
+	public static class SliceStackRandomAccess<T> extends Point implements RandomAccess<T> {
+
+		protected final List<? extends RandomAccessibleInterval<T>> slices;
+		protected final RandomAccess<T>[] accesses;
+
+		// the last dimension
+		protected final int sd;
+
+		protected RandomAccess<T> current;
+
+		@SuppressWarnings("unchecked")
+		public SliceStackRandomAccess(final List<? extends RandomAccessibleInterval<T>> slices) {
+
+			super(slices.get(0).numDimensions() + 1);
+
+			this.slices = slices;
+			this.accesses = new RandomAccess[slices.size()];
+			this.sd = n - 1;
+
+			select(0);
+		}
+
+		protected void select(final long s) {
+
+			position[sd] = s;
+
+			// out of bounds positions of the slice index are not readable
+			if (s < 0 || s >= accesses.length) {
+				current = null;
+				return;
+			}
+
+			final int i = (int)s;
+
+			if (accesses[i] == null)
+				accesses[i] = slices.get(i).randomAccess();
+
+			current = accesses[i];
+
+			for (int d = 0; d < sd; ++d)
+				current.setPosition(position[d], d);
+		}
+
+		@Override
+		public T get() {
+
+			return current.get();
+		}
+
+		@Override
+		public SliceStackRandomAccess<T> copy() {
+
+			final SliceStackRandomAccess<T> copy = new SliceStackRandomAccess<>(slices);
+			copy.setPosition(this);
+
+			return copy;
+		}
+
+		@Override
+		public SliceStackRandomAccess<T> copyRandomAccess() {
+
+			return copy();
+		}
+
+		@Override
+		public void fwd(final int d) {
+
+			if (d == sd)
+				select(position[sd] + 1);
+			else {
+				++position[d];
+				if (current != null)
+					current.fwd(d);
+			}
+		}
+
+		@Override
+		public void bck(final int d) {
+
+			if (d == sd)
+				select(position[sd] - 1);
+			else {
+				--position[d];
+				if (current != null)
+					current.bck(d);
+			}
+		}
+
+		@Override
+		public void move(final int distance, final int d) {
+
+			move((long)distance, d);
+		}
+
+		@Override
+		public void move(final long distance, final int d) {
+
+			setPosition(position[d] + distance, d);
+		}
+
+		@Override
+		public void move(final Localizable localizable) {
+
+			for (int d = 0; d < n; ++d)
+				move(localizable.getLongPosition(d), d);
+		}
+
+		@Override
+		public void move(final int[] distance) {
+
+			for (int d = 0; d < n; ++d)
+				move(distance[d], d);
+		}
+
+		@Override
+		public void move(final long[] distance) {
+
+			for (int d = 0; d < n; ++d)
+				move(distance[d], d);
+		}
+
+		@Override
+		public void setPosition(final Localizable localizable) {
+
+			for (int d = 0; d < n; ++d)
+				setPosition(localizable.getLongPosition(d), d);
+		}
+
+		@Override
+		public void setPosition(final int[] pos) {
+
+			for (int d = 0; d < n; ++d)
+				setPosition(pos[d], d);
+		}
+
+		@Override
+		public void setPosition(final long[] pos) {
+
+			for (int d = 0; d < n; ++d)
+				setPosition(pos[d], d);
+		}
+
+		@Override
+		public void setPosition(final int pos, final int d) {
+
+			setPosition((long)pos, d);
+		}
+
+		@Override
+		public void setPosition(final long pos, final int d) {
+
+			if (d == sd) {
+				if (pos != position[sd])
+					select(pos);
+			} else {
+				position[d] = pos;
+				if (current != null)
+					current.setPosition(pos, d);
+			}
+		}
+	}
+
+	/**
+	 * Sum all pixels of a stack and report the time it took
+	 *
+	 * @param img
+	 * @param name
+	 */
+	public static <T extends RealType<T>> void benchmark(final RandomAccessibleInterval<T> img, final String name) {
+
+		final long start = System.currentTimeMillis();
+
+		double sum = 0;
+		for (final T t : Views.flatIterable(img))
+			sum += t.getRealDouble();
+
+		System.out.println(name + ": " + (System.currentTimeMillis() - start) + " ms (checksum " + sum + ")");
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// restack every 10th plane as in Task7_Views.stacking
+		final List<RandomAccessibleInterval<UnsignedByteType>> everyTenth = hyperSlices(img, 10);
+
+		// all planes, so the number of slices matters
+		final List<RandomAccessibleInterval<UnsignedByteType>> all = hyperSlices(img, 1);
+
+		for (int i = 0; i < 3; ++i) {
+			benchmark(Views.stack(all), "Views.stack");
+			benchmark(stack(all), "Stacks.stack");
+		}
+
+		final PlanarImg<UnsignedByteType, ?> restacked = materialize(everyTenth, Runtime.getRuntime().availableProcessors());
+
+		ImageJFunctions.show(restacked).setTitle("every 10th plane");
+	}
+}
@@ -0,0 +1,288 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * A persistent cache for the results of expensive pipeline stages. A result is
+ * stored in an N5 container on local disk under a hash of the input content
+ * and the stage parameters, the least recently used results are evicted once
+ * the cache grows beyond a maximal size. Cache hits are loaded lazily block by
+ * block.
+ */
+public class StageCache {
+
+	protected final N5Writer n5;
+	protected final File directory;
+	protected final long maxBytes;
+	protected final int[] blockSize;
+
+	/**
+	 * @param directory
+	 *            - where the results are stored
+	 * @param maxBytes
+	 *            - the maximal size of the cache on disk
+	 * @param blockSize
+	 *            - the block size used for storing and hashing
+	 * @throws IOException
+	 */
+	public StageCache(final String directory, final long maxBytes, final int... blockSize) throws IOException {
+
+		this.n5 = new N5FSWriter(directory);
+		this.directory = new File(directory);
+		this.maxBytes = maxBytes;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Return the cached result of a stage or compute and cache it
+	 *
+	 * @param stage
+	 *            - a unique name of the stage
+	 * @param input
+	 *            - the input image, its content is part of the key
+	 * @param computation
+	 *            - computes the result from the input
+	 * @param parameters
+	 *            - all parameters of the stage, their String representation is
+	 *            part of the key
+	 * @return the computed result on a cache miss, a lazily loaded image on a
+	 *         cache hit
+	 * @throws IOException
+	 */
+	public <T extends RealType<T>, S extends RealType<S> & NativeType<S>> RandomAccessibleInterval<S> get(
+			final String stage,
+			final RandomAccessibleInterval<T> input,
+			final Function<RandomAccessibleInterval<T>, RandomAccessibleInterval<S>> computation,
+			final Object... parameters) throws IOException {
+
+		final String key = stage + "-" + hash(stage, input, parameters);
+
+		if (n5.datasetExists(key) && Boolean.TRUE.equals(n5.getAttribute(key, "complete", Boolean.class))) {
+
+			// mark as recently used
+			Files.setLastModifiedTime(new File(directory, key).toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+
+			final RandomAccessibleInterval<S> cached = N5Utils.open(n5, key);
+			final long[] min = n5.getAttribute(key, "min", long[].class);
+
+			return Views.translate(cached, min);
+		}
+
+		final RandomAccessibleInterval<S> result = computation.apply(input);
+
+		N5Utils.save(Views.zeroMin(result), n5, key, blockSize(result), new GzipCompression());
+		n5.setAttribute(key, "min", Intervals.minAsLongArray(result));
+		n5.setAttribute(key, "complete", true);
+
+		evict(key);
+
+		return result;
+	}
+
+	/**
+	 * Delete the least recently used results until the cache is smaller than
+	 * maxBytes
+	 *
+	 * @param keep
+	 *            - the key that must not be evicted
+	 * @throws IOException
+	 */
+	protected void evict(final String keep) throws IOException {
+
+		final ArrayList<File> entries = new ArrayList<>();
+
+		for (final String key : n5.list("/"))
+			if (!key.equals(keep))
+				entries.add(new File(directory, key));
+
+		// least recently used first
+		entries.sort(Comparator.comparingLong(File::lastModified));
+
+		long size = size(directory.toPath());
+
+		for (final File entry : entries) {
+			if (size <= maxBytes)
+				return;
+
+			size -= size(entry.toPath());
+			n5.remove(entry.getName());
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return the size of all files in a directory
+	 * @throws IOException
+	 */
+	protected static long size(final Path path) throws IOException {
+
+		try (final Stream<Path> files = Files.walk(path)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> {
+				try {
+					return Files.size(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).sum();
+		}
+	}
+
+	/**
+	 * @param interval
+	 * @return the block size for an interval, missing dimensions are filled
+	 *         with the last given block size
+	 */
+	protected int[] blockSize(final Interval interval) {
+
+		final int[] size = new int[interval.numDimensions()];
+
+		for (int d = 0; d < size.length; ++d)
+			size[d] = blockSize[Math.min(d, blockSize.length - 1)];
+
+		return size;
+	}
+
+	/**
+	 * Compute a SHA-256 hash of the stage, its parameters, the input
+	 * interval, type and content. The content is hashed in parallel blocks
+	 * whose hashes are then combined in order.
+	 *
+	 * @param stage
+	 * @param input
+	 * @param parameters
+	 * @return a hex representation of the hash
+	 */
+	public <T extends RealType<T>> String hash(final String stage, final RandomAccessibleInterval<T> input, final Object... parameters) {
+
+		final MessageDigest digest = sha256();
+
+		digest.update(stage.getBytes(StandardCharsets.UTF_8));
+		digest.update(Arrays.deepToString(parameters).getBytes(StandardCharsets.UTF_8));
+		digest.update(Util.printInterval(input).getBytes(StandardCharsets.UTF_8));
+		digest.update(Util.getTypeFromInterval(input).getClass().getName().getBytes(StandardCharsets.UTF_8));
+
+		final List<Interval> blocks = Blocks.split(input, blockSize(input));
+		final ConcurrentHashMap<Interval, byte[]> blockHashes = new ConcurrentHashMap<>();
+
+		Blocks.forEach(blocks, block -> {
+			final MessageDigest blockDigest = sha256();
+			final ByteBuffer buffer = ByteBuffer.allocate(8 * 8192);
+
+			for (final T t : Views.flatIterable(Views.interval(input, block))) {
+				if (!buffer.hasRemaining()) {
+					blockDigest.update(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+
+				buffer.putDouble(t.getRealDouble());
+			}
+
+			blockDigest.update(buffer.array(), 0, buffer.position());
+			blockHashes.put(block, blockDigest.digest());
+		});
+
+		// combine in a fixed order
+		for (final Interval block : blocks)
+			digest.update(blockHashes.get(block));
+
+		final StringBuilder hex = new StringBuilder();
+
+		for (final byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+
+		return hex.toString();
+	}
+
+	protected static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * A Gaussian convolution as an example of an expensive stage
+	 *
+	 * @param img
+	 * @param sigma
+	 * @return
+	 */
+	public static <T extends RealType<T>> RandomAccessibleInterval<FloatType> gauss(final RandomAccessibleInterval<T> img, final double sigma) {
+
+		final Img<FloatType> output = ArrayImgs.floats(Intervals.dimensionsAsLongArray(img));
+		final RandomAccessibleInterval<FloatType> translated = Views.translate(output, Intervals.minAsLongArray(img));
+
+		Gauss3.gauss(sigma, Views.extendMirrorSingle(img), translated);
+
+		return translated;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		new ImageJ();
+
+		final StageCache cache = new StageCache(System.getProperty("java.io.tmpdir") + "/stagecache.n5", 4L * 1024 * 1024 * 1024, 64);
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// the Gaussian convolutions of Task11_BiConverter.differenceOfGaussian,
+		// only computed on the first run
+		long time = System.currentTimeMillis();
+
+		final RandomAccessibleInterval<FloatType> img1 = cache.get("gauss", img, in -> gauss(in, 3), 3.0);
+		final RandomAccessibleInterval<FloatType> img2 = cache.get("gauss", img, in -> gauss(in, 4), 4.0);
+
+		System.out.println("gauss took " + (System.currentTimeMillis() - time) + " ms.");
+
+		final RandomAccessibleInterval<DoubleType> dog = Converters.convert(
+				img1,
+				img2,
+				(i1, i2, o) -> o.set(i1.getRealDouble() - i2.getRealDouble()),
+				new DoubleType());
+
+		ImageJFunctions.show(dog);
+	}
+}
@@ -0,0 +1,365 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.LanczosInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Scale2D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Lanczos interpolation that looks up the kernel weights in a table of
+ * quantized sub-pixel offsets instead of evaluating sinc functions, and sums
+ * the neighborhood separably, one dimension after the other. The sums over all
+ * dimensions but the first (columns) are kept, so moving along the first
+ * dimension, e.g. when sampling a regular grid, reuses the columns that are
+ * still in the neighborhood as long as the other coordinates do not change
+ * (the columns are not updated if the source changes in between).
+ *
+ * @param <T>
+ */
+public class TableLanczosInterpolator<T extends RealType<T>> extends RealPoint implements RealRandomAccess<T> {
+
+	/**
+	 * Creates TableLanczosInterpolators, all of them share the kernel table
+	 *
+	 * @param <T>
+	 */
+	public static class Factory<T extends RealType<T>> implements InterpolatorFactory<T, RandomAccessible<T>> {
+
+		protected final int alpha;
+		protected final int steps;
+		protected final boolean clip;
+		protected final double[] table;
+
+		/**
+		 * Lanczos with alpha 3, like LanczosInterpolatorFactory
+		 */
+		public Factory() {
+
+			this(3, 1000, true);
+		}
+
+		/**
+		 * @param alpha
+		 *            - the radius of the kernel
+		 * @param steps
+		 *            - how many sub-pixel offsets are tabulated per pixel
+		 * @param clip
+		 *            - whether to clip values to the range of the type
+		 */
+		public Factory(final int alpha, final int steps, final boolean clip) {
+
+			this.alpha = alpha;
+			this.steps = steps;
+			this.clip = clip;
+			this.table = table(alpha, steps);
+		}
+
+		@Override
+		public TableLanczosInterpolator<T> create(final RandomAccessible<T> f) {
+
+			return new TableLanczosInterpolator<>(f.randomAccess(), table, alpha, steps, clip);
+		}
+
+		@Override
+		public TableLanczosInterpolator<T> create(final RandomAccessible<T> f, final RealInterval interval) {
+
+			return create(f);
+		}
+	}
+
+	/**
+	 * @param x
+	 * @param alpha
+	 * @return the Lanczos kernel at x
+	 */
+	public static double lanczos(final double x, final int alpha) {
+
+		if (x == 0)
+			return 1;
+
+		if (Math.abs(x) >= alpha)
+			return 0;
+
+		final double px = Math.PI * x;
+
+		return alpha * Math.sin(px) * Math.sin(px / alpha) / (px * px);
+	}
+
+	/**
+	 * @param alpha
+	 * @param steps
+	 * @return the normalized weights of the 2*alpha neighbors for the
+	 *         sub-pixel offsets 0/steps to steps/steps, offset after offset
+	 */
+	public static double[] table(final int alpha, final int steps) {
+
+		final int size = 2 * alpha;
+		final double[] table = new double[(steps + 1) * size];
+
+		for (int q = 0; q <= steps; ++q) {
+			final double offset = (double)q / steps;
+
+			double sum = 0;
+			for (int k = 0; k < size; ++k) {
+				// the distance to neighbor floor(x) - alpha + 1 + k
+				table[q * size + k] = lanczos(offset + alpha - 1 - k, alpha);
+				sum += table[q * size + k];
+			}
+
+			for (int k = 0; k < size; ++k)
+				table[q * size + k] /= sum;
+		}
+
+		return table;
+	}
+
+	protected final RandomAccess<T> access;
+	protected final double[] table;
+	protected final int alpha, steps, size;
+	protected final boolean clip;
+
+	protected final T value;
+	protected final double minValue, maxValue;
+
+	// floor of the position and index of the offset in the table
+	protected final long[] floor;
+	protected final int[] offset;
+
+	// the columns of the last sample
+	protected double[] columns, nextColumns;
+	protected long columnsMin;
+	protected boolean hasColumns;
+	protected final long[] columnsFloor;
+	protected final int[] columnsOffset;
+
+	// the values of one column, reduced in place
+	protected final double[] buffer;
+	protected final int[] counter;
+
+	public TableLanczosInterpolator(
+			final RandomAccess<T> access,
+			final double[] table,
+			final int alpha,
+			final int steps,
+			final boolean clip) {
+
+		super(access.numDimensions());
+
+		this.access = access;
+		this.table = table;
+		this.alpha = alpha;
+		this.steps = steps;
+		this.size = 2 * alpha;
+		this.clip = clip;
+
+		this.value = access.get().createVariable();
+		this.minValue = value.getMinValue();
+		this.maxValue = value.getMaxValue();
+
+		this.floor = new long[n];
+		this.offset = new int[n];
+
+		this.columns = new double[size];
+		this.nextColumns = new double[size];
+		this.columnsFloor = new long[n];
+		this.columnsOffset = new int[n];
+
+		int columnSize = 1;
+		for (int d = 1; d < n; ++d)
+			columnSize *= size;
+
+		this.buffer = new double[columnSize];
+		this.counter = new int[n];
+	}
+
+	/**
+	 * The neighborhood of column x summed over all dimensions but the first
+	 *
+	 * @param x
+	 * @return
+	 */
+	protected double column(final long x) {
+
+		access.setPosition(x, 0);
+
+		if (n == 1)
+			return access.get().getRealDouble();
+
+		for (int d = 1; d < n; ++d) {
+			access.setPosition(floor[d] - alpha + 1, d);
+			counter[d] = 0;
+		}
+
+		// read in flat order
+		for (int i = 0; i < buffer.length; ++i) {
+			buffer[i] = access.get().getRealDouble();
+
+			for (int d = 1; d < n; ++d) {
+				if (++counter[d] < size) {
+					access.fwd(d);
+					break;
+				}
+
+				counter[d] = 0;
+				access.move(1 - size, d);
+			}
+		}
+
+		// sum one dimension after the other
+		int length = buffer.length;
+
+		for (int d = 1; d < n; ++d) {
+			final int weights = offset[d] * size;
+			length /= size;
+
+			for (int j = 0; j < length; ++j) {
+				double sum = 0;
+				for (int k = 0; k < size; ++k)
+					sum += buffer[j * size + k] * table[weights + k];
+
+				buffer[j] = sum;
+			}
+		}
+
+		return buffer[0];
+	}
+
+	@Override
+	public T get() {
+
+		boolean sameColumns = hasColumns;
+
+		for (int d = 0; d < n; ++d) {
+			floor[d] = (long)Math.floor(position[d]);
+			offset[d] = (int)Math.round((position[d] - floor[d]) * steps);
+
+			if (d > 0)
+				sameColumns &= floor[d] == columnsFloor[d] && offset[d] == columnsOffset[d];
+		}
+
+		final long min = floor[0] - alpha + 1;
+
+		for (int k = 0; k < size; ++k) {
+			final long i = min + k - columnsMin;
+			nextColumns[k] = sameColumns && i >= 0 && i < size ? columns[(int)i] : column(min + k);
+		}
+
+		final double[] tmp = columns;
+		columns = nextColumns;
+		nextColumns = tmp;
+
+		columnsMin = min;
+		hasColumns = true;
+		System.arraycopy(floor, 0, columnsFloor, 0, n);
+		System.arraycopy(offset, 0, columnsOffset, 0, n);
+
+		final int weights = offset[0] * size;
+
+		double sum = 0;
+		for (int k = 0; k < size; ++k)
+			sum += columns[k] * table[weights + k];
+
+		if (clip)
+			sum = Math.max(minValue, Math.min(maxValue, sum));
+
+		value.setReal(sum);
+
+		return value;
+	}
+
+	@Override
+	public TableLanczosInterpolator<T> copy() {
+
+		final TableLanczosInterpolator<T> copy = new TableLanczosInterpolator<>(access.copyRandomAccess(), table, alpha, steps, clip);
+		copy.setPosition(this);
+
+		return copy;
+	}
+
+	@Override
+	public TableLanczosInterpolator<T> copyRealRandomAccess() {
+
+		return copy();
+	}
+
+	/**
+	 * Magnify an image and report the time it took
+	 *
+	 * @param interpolated
+	 * @param interval
+	 * @param scale
+	 * @param name
+	 * @return the magnified image
+	 */
+	public static <T extends RealType<T>> RandomAccessibleInterval<UnsignedByteType> magnify(
+			final RealRandomAccessible<T> interpolated,
+			final Interval interval,
+			final double scale,
+			final String name) {
+
+		final long time = System.currentTimeMillis();
+
+		final RandomAccessible<T> magnified = Views.raster(RealViews.affine(interpolated, new Scale2D(scale, scale)));
+
+		final Img<UnsignedByteType> output = new ArrayImgFactory<>(new UnsignedByteType()).create(
+				(long)(interval.dimension(0) * scale),
+				(long)(interval.dimension(1) * scale));
+
+		Blocks.copy(
+				Converters.convert(magnified, (i, o) -> o.setReal(i.getRealDouble()), new UnsignedByteType()),
+				output,
+				new int[]{256, 256});
+
+		System.out.println(name + ": " + (System.currentTimeMillis() - time) + " ms");
+
+		return output;
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		// the interpolations of Task8_Interpolation
+		final RealRandomAccessible<UnsignedByteType> lanczos = Views.interpolate(
+				Views.extendZero(blobs),
+				new LanczosInterpolatorFactory<>());
+
+		final RealRandomAccessible<UnsignedByteType> table = Views.interpolate(
+				Views.extendZero(blobs),
+				new Factory<>());
+
+		final Interval interval = new FinalInterval(blobs);
+
+		RandomAccessibleInterval<UnsignedByteType> a = null, b = null;
+
+		for (int i = 0; i < 3; ++i) {
+			a = magnify(lanczos, interval, 4, "LanczosInterpolatorFactory");
+			b = magnify(table, interval, 4, "table lanczos");
+		}
+
+		ImageJFunctions.show(a).setTitle("lanczos");
+		ImageJFunctions.show(b).setTitle("table lanczos");
+	}
+}
@@ -0,0 +1,380 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.outofbounds.OutOfBounds;
+import net.imglib2.outofbounds.OutOfBoundsFactory;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * Mirror and periodic out-of-bounds strategies that look up the source
+ * coordinate of every position within a margin around the image in a table
+ * per dimension, instead of computing modulo and reflection on every step.
+ * Positions beyond the margin are computed. Inside the image, moving the
+ * access moves the source access directly.
+ *
+ * @param <T>
+ */
+public class TableOutOfBounds<T> extends Point implements OutOfBounds<T> {
+
+	/**
+	 * How coordinates outside the image are mapped into it
+	 */
+	public enum Boundary {
+		/** mirror without repeating the border pixel, like extendMirrorSingle */
+		MIRROR_SINGLE,
+		/** mirror repeating the border pixel, like extendMirrorDouble */
+		MIRROR_DOUBLE,
+		/** repeat the image, like extendPeriodic */
+		PERIODIC
+	}
+
+	/**
+	 * Creates TableOutOfBounds for an image. The tables are built once per
+	 * interval and shared by all accesses created for it.
+	 *
+	 * @param <T>
+	 * @param <F>
+	 */
+	public static class Factory<T, F extends Interval & RandomAccessible<T>> implements OutOfBoundsFactory<T, F> {
+
+		/**
+		 * The tables of an interval
+		 */
+		protected static class Tables {
+
+			final Interval interval;
+			final long[][] tables;
+
+			Tables(final Interval interval, final long[][] tables) {
+
+				this.interval = interval;
+				this.tables = tables;
+			}
+		}
+
+		protected final Boundary boundary;
+		protected final long margin;
+
+		// the tables of the interval of the last create
+		protected volatile Tables tables;
+
+		/**
+		 * @param boundary
+		 * @param margin
+		 *            - how far around the image positions are looked up
+		 */
+		public Factory(final Boundary boundary, final long margin) {
+
+			this.boundary = boundary;
+			this.margin = margin;
+		}
+
+		@Override
+		public TableOutOfBounds<T> create(final F f) {
+
+			Tables t = tables;
+
+			if (t == null || !Intervals.equals(t.interval, f)) {
+				t = new Tables(new FinalInterval(f), tables(f, boundary, margin));
+				tables = t;
+			}
+
+			return new TableOutOfBounds<>(f, f.randomAccess(), t.tables, boundary, margin);
+		}
+	}
+
+	/**
+	 * Extend an image with a table-driven mirror strategy
+	 *
+	 * @param img
+	 * @param margin
+	 * @return
+	 */
+	public static <T, F extends RandomAccessibleInterval<T>> ExtendedRandomAccessibleInterval<T, F> extendMirrorSingle(final F img, final long margin) {
+
+		return new ExtendedRandomAccessibleInterval<>(img, new Factory<T, F>(Boundary.MIRROR_SINGLE, margin));
+	}
+
+	/**
+	 * Extend an image with a table-driven mirror strategy that repeats the
+	 * border pixel
+	 *
+	 * @param img
+	 * @param margin
+	 * @return
+	 */
+	public static <T, F extends RandomAccessibleInterval<T>> ExtendedRandomAccessibleInterval<T, F> extendMirrorDouble(final F img, final long margin) {
+
+		return new ExtendedRandomAccessibleInterval<>(img, new Factory<T, F>(Boundary.MIRROR_DOUBLE, margin));
+	}
+
+	/**
+	 * Extend an image with a table-driven periodic strategy
+	 *
+	 * @param img
+	 * @param margin
+	 * @return
+	 */
+	public static <T, F extends RandomAccessibleInterval<T>> ExtendedRandomAccessibleInterval<T, F> extendPeriodic(final F img, final long margin) {
+
+		return new ExtendedRandomAccessibleInterval<>(img, new Factory<T, F>(Boundary.PERIODIC, margin));
+	}
+
+	/**
+	 * @param interval
+	 * @param boundary
+	 * @param margin
+	 * @return for every dimension the source coordinate of the positions
+	 *         min-margin to max+margin
+	 */
+	public static long[][] tables(final Interval interval, final Boundary boundary, final long margin) {
+
+		final long[][] tables = new long[interval.numDimensions()][];
+
+		for (int d = 0; d < tables.length; ++d) {
+			tables[d] = new long[(int)(interval.dimension(d) + 2 * margin)];
+
+			for (int i = 0; i < tables[d].length; ++i)
+				tables[d][i] = map(interval.min(d) - margin + i, interval.min(d), interval.dimension(d), boundary);
+		}
+
+		return tables;
+	}
+
+	/**
+	 * @param position
+	 * @param min
+	 * @param size
+	 * @param boundary
+	 * @return the source coordinate of a position
+	 */
+	public static long map(final long position, final long min, final long size, final Boundary boundary) {
+
+		long r = position - min;
+
+		switch (boundary) {
+		case MIRROR_SINGLE:
+			if (size == 1)
+				return min;
+
+			final long period = 2 * (size - 1);
+			r = Math.floorMod(r, period);
+
+			return min + (r < size ? r : period - r);
+		case MIRROR_DOUBLE:
+			r = Math.floorMod(r, 2 * size);
+
+			return min + (r < size ? r : 2 * size - 1 - r);
+		default:
+			return min + Math.floorMod(r, size);
+		}
+	}
+
+	protected final Interval interval;
+	protected final RandomAccess<T> access;
+	protected final long[][] tables;
+	protected final Boundary boundary;
+	protected final long margin;
+
+	protected final long[] min, max, size;
+
+	public TableOutOfBounds(
+			final Interval interval,
+			final RandomAccess<T> access,
+			final long[][] tables,
+			final Boundary boundary,
+			final long margin) {
+
+		super(interval.numDimensions());
+
+		this.interval = interval;
+		this.access = access;
+		this.tables = tables;
+		this.boundary = boundary;
+		this.margin = margin;
+
+		this.min = new long[n];
+		this.max = new long[n];
+		this.size = new long[n];
+
+		for (int d = 0; d < n; ++d) {
+			min[d] = interval.min(d);
+			max[d] = interval.max(d);
+			size[d] = interval.dimension(d);
+		}
+
+		for (int d = 0; d < n; ++d)
+			update(d);
+	}
+
+	protected void update(final int d) {
+
+		final long i = position[d] - min[d] + margin;
+
+		if (i >= 0 && i < tables[d].length)
+			access.setPosition(tables[d][(int)i], d);
+		else
+			access.setPosition(map(position[d], min[d], size[d], boundary), d);
+	}
+
+	@Override
+	public boolean isOutOfBounds() {
+
+		for (int d = 0; d < n; ++d)
+			if (position[d] < min[d] || position[d] > max[d])
+				return true;
+
+		return false;
+	}
+
+	@Override
+	public T get() {
+
+		return access.get();
+	}
+
+	@Override
+	public TableOutOfBounds<T> copy() {
+
+		final TableOutOfBounds<T> copy = new TableOutOfBounds<>(interval, access.copyRandomAccess(), tables, boundary, margin);
+		copy.setPosition(this);
+
+		return copy;
+	}
+
+	@Override
+	public TableOutOfBounds<T> copyRandomAccess() {
+
+		return copy();
+	}
+
+	@Override
+	public void fwd(final int d) {
+
+		// inside the image the source moves along
+		if (++position[d] > min[d] && position[d] <= max[d])
+			access.fwd(d);
+		else
+			update(d);
+	}
+
+	@Override
+	public void bck(final int d) {
+
+		if (--position[d] >= min[d] && position[d] < max[d])
+			access.bck(d);
+		else
+			update(d);
+	}
+
+	@Override
+	public void move(final int distance, final int d) {
+
+		move((long)distance, d);
+	}
+
+	@Override
+	public void move(final long distance, final int d) {
+
+		position[d] += distance;
+		update(d);
+	}
+
+	@Override
+	public void move(final Localizable localizable) {
+
+		for (int d = 0; d < n; ++d)
+			move(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void move(final int[] distance) {
+
+		for (int d = 0; d < n; ++d)
+			move(distance[d], d);
+	}
+
+	@Override
+	public void move(final long[] distance) {
+
+		for (int d = 0; d < n; ++d)
+			move(distance[d], d);
+	}
+
+	@Override
+	public void setPosition(final Localizable localizable) {
+
+		for (int d = 0; d < n; ++d)
+			setPosition(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void setPosition(final int[] pos) {
+
+		for (int d = 0; d < n; ++d)
+			setPosition(pos[d], d);
+	}
+
+	@Override
+	public void setPosition(final long[] pos) {
+
+		for (int d = 0; d < n; ++d)
+			setPosition(pos[d], d);
+	}
+
+	@Override
+	public void setPosition(final int pos, final int d) {
+
+		setPosition((long)pos, d);
+	}
+
+	@Override
+	public void setPosition(final long pos, final int d) {
+
+		position[d] = pos;
+		update(d);
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> blobs = ImagePlusImgs.from(
+				IJ.openImage("http://imagej.nih.gov/ij/images/blobs.gif"));
+
+		final Img<FloatType> output = new ArrayImgFactory<>(new FloatType()).create(blobs);
+
+		// a large kernel, so a big part of the reads are out of bounds
+		final int radius = 20;
+
+		for (int i = 0; i < 5; ++i) {
+			long time = System.currentTimeMillis();
+			InteriorBorder.mean(Views.extendMirrorSingle(blobs), output, radius);
+			System.out.println("extendMirrorSingle: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			InteriorBorder.mean(extendMirrorSingle(blobs, radius), output, radius);
+			System.out.println("table mirror: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			InteriorBorder.mean(Views.extendPeriodic(blobs), output, radius);
+			System.out.println("extendPeriodic: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			InteriorBorder.mean(extendPeriodic(blobs, radius), output, radius);
+			System.out.println("table periodic: " + (System.currentTimeMillis() - time) + " ms");
+		}
+	}
+}
@@ -46,6 +46,11 @@ public class Task8_Interpolation {
 				Views.extendZero(img),
 				new LanczosInterpolatorFactory<>());
 
+		// the same with tabulated kernel weights
+		RealRandomAccessible<T> lanczosTable = Views.interpolate(
+				Views.extendZero(img),
+				new TableLanczosInterpolator.Factory<>());
+
 		// show the realrandomaccessibles
 		BdvStackSource<?> bdv;
 		BdvOptions options = new BdvOptions();
@@ -57,6 +62,7 @@ public class Task8_Interpolation {
 		bdv = BdvFunctions.show(nn, interval, "nearest neighbor", options);
 		bdv = BdvFunctions.show(linear, interval, "linear", options.addTo(bdv));
 		bdv = BdvFunctions.show(lanczos, interval, "lanczos", options.addTo(bdv));
+		bdv = BdvFunctions.show(lanczosTable, interval, "lanczos (table)", options.addTo(bdv));
 
 		// enable single-source mode
 		bdv.getBdvHandle().getViewerPanel().setDisplayMode(DisplayMode.SINGLE);
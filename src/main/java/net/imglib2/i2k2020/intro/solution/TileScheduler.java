@@ -0,0 +1,325 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.position.FunctionRealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Util;
+
+/**
+ * Progressively renders expensive virtual sources (functions, real
+ * transformations) into a screen image. Every repaint request enqueues all
+ * tiles of the screen at several resolutions; coarse levels are computed
+ * first, and within a level tiles closer to the center of the screen come
+ * first. When the view changes, all pending and running tiles of the previous
+ * request are dropped instead of being computed to completion.
+ */
+public class TileScheduler {
+
+	/**
+	 * Is notified whenever a tile of the screen was updated, called from the
+	 * rendering threads
+	 */
+	public interface TileListener {
+
+		void tileRendered(Interval tile, int level);
+
+		/**
+		 * Rendering a tile failed, the rendering thread continues with the
+		 * next tile. Does nothing by default.
+		 *
+		 * @param tile
+		 * @param level
+		 * @param e
+		 */
+		default void tileFailed(final Interval tile, final int level, final RuntimeException e) {}
+	}
+
+	protected class TileTask implements Comparable<TileTask> {
+
+		final int tileIndex;
+		final int level;
+		final int generation;
+		final AffineTransform3D toSource;
+		final double distance;
+
+		public TileTask(final int tileIndex, final int level, final int generation, final AffineTransform3D toSource) {
+
+			this.tileIndex = tileIndex;
+			this.level = level;
+			this.generation = generation;
+			this.toSource = toSource;
+
+			final Interval tile = tiles.get(tileIndex);
+			final double dx = (tile.min(0) + tile.max(0)) / 2.0 - width / 2.0;
+			final double dy = (tile.min(1) + tile.max(1)) / 2.0 - height / 2.0;
+
+			this.distance = dx * dx + dy * dy;
+		}
+
+		@Override
+		public int compareTo(final TileTask o) {
+
+			// coarse levels first, then from the center outwards
+			if (level != o.level)
+				return Integer.compare(o.level, level);
+
+			return Double.compare(distance, o.distance);
+		}
+	}
+
+	protected final List<HeadlessRenderer.RenderSource> sources;
+	protected final int width, height, depth, numLevels;
+	protected final TileListener listener;
+
+	protected final ArrayImg<ARGBType, IntArray> screen;
+	protected final int[] pixels;
+
+	protected final List<Interval> tiles;
+
+	// the finest level that was written to each tile in the current generation
+	protected final int[] tileLevels;
+
+	protected final AtomicInteger generation = new AtomicInteger(0);
+	protected final PriorityBlockingQueue<TileTask> queue = new PriorityBlockingQueue<>();
+	protected final ExecutorService service;
+
+	/**
+	 * @param sources
+	 *            - the sources and their display settings
+	 * @param width
+	 *            - the width of the screen
+	 * @param height
+	 *            - the height of the screen
+	 * @param depth
+	 *            - the number of planes for a maximum intensity projection, 1
+	 *            for a slice
+	 * @param tileSize
+	 * @param numLevels
+	 *            - the number of resolutions, level l samples every 2^l-th
+	 *            pixel
+	 * @param numThreads
+	 * @param listener
+	 *            - can be null
+	 */
+	public TileScheduler(
+			final List<HeadlessRenderer.RenderSource> sources,
+			final int width,
+			final int height,
+			final int depth,
+			final int tileSize,
+			final int numLevels,
+			final int numThreads,
+			final TileListener listener) {
+
+		this.sources = sources;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.numLevels = numLevels;
+		this.listener = listener;
+
+		this.screen = ArrayImgs.argbs(width, height);
+		this.pixels = screen.update(null).getCurrentStorageArray();
+
+		this.tiles = Blocks.split(new FinalInterval(width, height), new int[]{tileSize, tileSize});
+		this.tileLevels = new int[tiles.size()];
+
+		this.service = Executors.newFixedThreadPool(numThreads);
+
+		for (int i = 0; i < numThreads; ++i)
+			service.submit(this::work);
+	}
+
+	/**
+	 * @return the screen image that is updated while tiles are rendered
+	 */
+	public ArrayImg<ARGBType, IntArray> getScreen() {
+
+		return screen;
+	}
+
+	/**
+	 * @return the ARGB pixels of the screen
+	 */
+	public int[] getPixels() {
+
+		return pixels;
+	}
+
+	/**
+	 * Cancel everything that is pending and render the screen for a new view
+	 *
+	 * @param viewerTransform
+	 *            - maps source coordinates to screen coordinates
+	 */
+	public void requestRepaint(final AffineTransform3D viewerTransform) {
+
+		final AffineTransform3D toSource = viewerTransform.inverse();
+
+		synchronized (tileLevels) {
+			final int g = generation.incrementAndGet();
+
+			queue.clear();
+			Arrays.fill(tileLevels, numLevels);
+
+			for (int l = numLevels - 1; l >= 0; --l)
+				for (int i = 0; i < tiles.size(); ++i)
+					queue.add(new TileTask(i, l, g, toSource));
+		}
+	}
+
+	/**
+	 * Stop all rendering threads
+	 */
+	public void shutdown() {
+
+		generation.incrementAndGet();
+		queue.clear();
+		service.shutdownNow();
+	}
+
+	protected void work() {
+
+		final TileListener errorListener = listener != null ? listener : (tile, level) -> {};
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final TileTask task = queue.take();
+
+				// a failing tile must not end the thread
+				try {
+					render(task);
+				} catch (RuntimeException e) {
+					errorListener.tileFailed(tiles.get(task.tileIndex), task.level, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// shut down
+		}
+	}
+
+	protected void render(final TileTask task) {
+
+		// stale requests are dropped, also while rendering
+		if (task.generation != generation.get())
+			return;
+
+		final Interval tile = tiles.get(task.tileIndex);
+
+		final int[] tilePixels = HeadlessRenderer.renderTile(
+				sources,
+				task.toSource,
+				tile,
+				depth,
+				1 << task.level,
+				() -> task.generation != generation.get());
+
+		if (tilePixels == null)
+			return;
+
+		synchronized (tileLevels) {
+			// never overwrite a finer level that finished earlier
+			if (task.generation != generation.get() || task.level >= tileLevels[task.tileIndex])
+				return;
+
+			tileLevels[task.tileIndex] = task.level;
+			HeadlessRenderer.writeTile(tilePixels, tile, pixels, width);
+		}
+
+		if (listener != null)
+			listener.tileRendered(tile, task.level);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		// the Julia set of Task12_Functions.fractal
+		final double a = 0.2, b = 0.8;
+		final int n = 1000;
+
+		final FunctionRealRandomAccessible<UnsignedLongType> julia = new FunctionRealRandomAccessible<>(
+				2,
+				(x, y) -> {
+					long i = 0;
+					double v = 0,
+							c = x.getDoublePosition(0),
+							d = x.getDoublePosition(1);
+					while (i < n && v < 4096) {
+						double br = c * c - d * d;
+						d = 2 * c * d;
+						c = br + a;
+						d += b;
+						v = Math.sqrt(c * c + d * d);
+						++i;
+					}
+					y.set(i);
+				}, UnsignedLongType::new);
+
+		final int width = 800, height = 600;
+
+		final HeadlessRenderer.RenderSource source = new HeadlessRenderer.RenderSource(
+				julia,
+				new ARGBType(ARGBType.rgba(255, 255, 255, 0)),
+				0,
+				32);
+
+		final TileScheduler scheduler = new TileScheduler(
+				Arrays.asList(source),
+				width,
+				height,
+				1,
+				64,
+				4,
+				Runtime.getRuntime().availableProcessors(),
+				new TileListener() {
+
+					@Override
+					public void tileRendered(final Interval tile, final int level) {}
+
+					@Override
+					public void tileFailed(final Interval tile, final int level, final RuntimeException e) {
+
+						System.out.println("failed to render tile " + Util.printInterval(tile) + " at level " + level + ": " + e);
+					}
+				});
+
+		// ImageJ shows the pixels of the screen directly
+		final ImagePlus imp = new ImagePlus("julia", new ColorProcessor(width, height, scheduler.getPixels()));
+		imp.show();
+
+		// zoom in continuously, every new view cancels the tiles of the
+		// previous one
+		for (int i = 0; i < 200; ++i) {
+			final double scale = 300 * Math.pow(1.03, i);
+
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.translate(0.1, 0.2, 0);
+			transform.scale(scale);
+			transform.translate(width / 2.0, height / 2.0, 0);
+
+			scheduler.requestRepaint(transform);
+
+			Thread.sleep(100);
+			imp.updateAndDraw();
+		}
+
+		Thread.sleep(2000);
+		imp.updateAndDraw();
+
+		scheduler.shutdown();
+	}
+}
@@ -0,0 +1,323 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.lang.reflect.Array;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageJ;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Util;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Materialize any axis permutation of an image (e.g. xz or yz orientations of
+ * a stack) into a PlanarImg. The target is processed in small tiles in
+ * parallel, so the pixels read from the source by one tile stay in the CPU
+ * cache although they are far apart in memory. If source x becomes a target
+ * dimension > 1, the tiles are slabs of target planes along it, so one cache
+ * line of the source is used for all planes of the slab. ArrayImgs and
+ * PlanarImgs are transposed directly on their primitive arrays.
+ */
+public class Transpose {
+
+	/**
+	 * Copies one row of the target from the source arrays
+	 */
+	protected interface RowCopier {
+
+		/**
+		 * @param source
+		 *            - the arrays of the source, as byte[][], short[][], ...
+		 * @param array
+		 *            - index of the source array of the first pixel
+		 * @param arrayStep
+		 *            - step of the source array index per pixel
+		 * @param offset
+		 *            - offset in the source array of the first pixel
+		 * @param offsetStep
+		 *            - step of the offset per pixel
+		 * @param target
+		 *            - the target array
+		 * @param targetOffset
+		 * @param length
+		 */
+		void copy(Object source, long array, long arrayStep, long offset, long offsetStep, Object target, int targetOffset, int length);
+	}
+
+	/**
+	 * A view that arranges the dimensions of the source in a new order
+	 *
+	 * @param img
+	 * @param permutation
+	 *            - dimension d of the result is dimension permutation[d] of
+	 *            the source
+	 * @return
+	 */
+	public static <T> RandomAccessibleInterval<T> permute(final RandomAccessibleInterval<T> img, final int... permutation) {
+
+		final int n = img.numDimensions();
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+
+		for (int d = 0; d < n; ++d) {
+			min[d] = img.min(permutation[d]);
+			max[d] = img.max(permutation[d]);
+		}
+
+		// source dimension permutation[d] is read from dimension d
+		final int[] mapping = new int[n];
+		for (int d = 0; d < n; ++d)
+			mapping[permutation[d]] = d;
+
+		final MixedTransform t = new MixedTransform(n, n);
+		t.setComponentMapping(mapping);
+
+		return Views.interval(new MixedTransformView<>(img, t), min, max);
+	}
+
+	/**
+	 * Materialize an axis permutation in parallel
+	 *
+	 * @param img
+	 * @param permutation
+	 *            - dimension d of the result is dimension permutation[d] of
+	 *            the source
+	 * @param tileSize
+	 *            - the size of the tiles in all dimensions, e.g. 64
+	 * @param numThreads
+	 * @return the permuted image, zero-min
+	 */
+	public static <T extends NativeType<T>> PlanarImg<T, ?> transpose(
+			final RandomAccessibleInterval<T> img,
+			final int[] permutation,
+			final int tileSize,
+			final int numThreads) {
+
+		final int n = img.numDimensions();
+
+		final long[] dimensions = new long[n];
+		for (int d = 0; d < n; ++d)
+			dimensions[d] = img.dimension(permutation[d]);
+
+		final T type = Util.getTypeFromInterval(img).createVariable();
+		final PlanarImg<T, ?> target = new PlanarImgFactory<>(type).create(dimensions);
+
+		final int[] blockSize = new int[n];
+		for (int d = 0; d < n; ++d)
+			blockSize[d] = d < 2 || permutation[d] == 0 ? tileSize : 1;
+
+		final List<Interval> tiles = Blocks.split(target, blockSize);
+
+		final boolean isPrimitive =
+				(img instanceof ArrayImg || img instanceof PlanarImg) &&
+				type.getEntitiesPerPixel().getRatio() == 1;
+
+		if (isPrimitive) {
+			final Object[] arrays = RawImgIO.storageArrays((Img<?>)img).toArray();
+			final Object[] targetArrays = RawImgIO.storageArrays(target).toArray();
+
+			// the source arrays as one typed array of arrays, so the copiers
+			// cast once per row and not per pixel
+			final Object sourceArrays = Array.newInstance(arrays[0].getClass(), arrays.length);
+			System.arraycopy(arrays, 0, sourceArrays, 0, arrays.length);
+			// how the index of the array and the offset in it change along
+			// each source dimension
+			final long[] arrayStrides = new long[n];
+			final long[] offsetStrides = new long[n];
+
+			if (img instanceof ArrayImg) {
+				offsetStrides[0] = 1;
+				for (int d = 1; d < n; ++d)
+					offsetStrides[d] = offsetStrides[d - 1] * img.dimension(d - 1);
+			} else {
+				offsetStrides[0] = 1;
+				if (n > 1)
+					offsetStrides[1] = img.dimension(0);
+
+				if (n > 2)
+					arrayStrides[2] = 1;
+				for (int d = 3; d < n; ++d)
+					arrayStrides[d] = arrayStrides[d - 1] * img.dimension(d - 1);
+			}
+
+			final RowCopier copier = rowCopier(arrays[0]);
+
+			Blocks.forEach(tiles, tile -> transposeTile(
+					sourceArrays,
+					arrayStrides,
+					offsetStrides,
+					targetArrays,
+					dimensions,
+					permutation,
+					tile,
+					copier), numThreads);
+		} else {
+			final RandomAccessible<T> permuted = Views.zeroMin(permute(img, permutation));
+
+			Blocks.forEach(tiles, tile -> Blocks.copy(permuted, Views.interval(target, tile)), numThreads);
+		}
+
+		return target;
+	}
+
+	protected static void transposeTile(
+			final Object sourceArrays,
+			final long[] arrayStrides,
+			final long[] offsetStrides,
+			final Object[] targetArrays,
+			final long[] dimensions,
+			final int[] permutation,
+			final Interval tile,
+			final RowCopier copier) {
+
+		final int n = tile.numDimensions();
+		final int length = (int)tile.dimension(0);
+
+		// target plane index of the first plane of the tile, tiles are one
+		// plane thick in d > 1 except in the dimension that is source x
+		long plane = 0;
+		long planeStride = 1;
+		int slab = -1;
+		long slabPlaneStride = 0;
+
+		for (int d = 2; d < n; ++d) {
+			plane += tile.min(d) * planeStride;
+
+			if (permutation[d] == 0) {
+				slab = d;
+				slabPlaneStride = planeStride;
+			}
+
+			planeStride *= dimensions[d];
+		}
+
+		final long depth = slab < 0 ? 1 : tile.dimension(slab);
+		final long arraySlabStep = slab < 0 ? 0 : arrayStrides[permutation[slab]];
+		final long offsetSlabStep = slab < 0 ? 0 : offsetStrides[permutation[slab]];
+
+		final long arrayStep = arrayStrides[permutation[0]];
+		final long offsetStep = offsetStrides[permutation[0]];
+
+		long array = 0;
+		long offset = 0;
+
+		for (int d = 0; d < n; ++d) {
+			array += tile.min(d) * arrayStrides[permutation[d]];
+			offset += tile.min(d) * offsetStrides[permutation[d]];
+		}
+
+		final long rows = n > 1 ? tile.dimension(1) : 1;
+		final long arrayRowStep = n > 1 ? arrayStrides[permutation[1]] : 0;
+		final long offsetRowStep = n > 1 ? offsetStrides[permutation[1]] : 0;
+
+		for (long y = 0; y < rows; ++y) {
+			final int targetOffset = (int)((n > 1 ? tile.min(1) + y : 0) * dimensions[0] + tile.min(0));
+
+			// the same row in all planes of the slab, they read neighboring
+			// pixels of the same source cache lines
+			for (long z = 0; z < depth; ++z)
+				copier.copy(
+						sourceArrays,
+						array + z * arraySlabStep,
+						arrayStep,
+						offset + z * offsetSlabStep,
+						offsetStep,
+						targetArrays[(int)(plane + z * slabPlaneStride)],
+						targetOffset,
+						length);
+
+			array += arrayRowStep;
+			offset += offsetRowStep;
+		}
+	}
+
+	protected static RowCopier rowCopier(final Object array) {
+
+		if (array instanceof byte[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final byte[][] source = (byte[][])s;
+				final byte[] target = (byte[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else if (array instanceof short[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final short[][] source = (short[][])s;
+				final short[] target = (short[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else if (array instanceof int[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final int[][] source = (int[][])s;
+				final int[] target = (int[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else if (array instanceof long[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final long[][] source = (long[][])s;
+				final long[] target = (long[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else if (array instanceof float[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final float[][] source = (float[][])s;
+				final float[] target = (float[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else if (array instanceof double[])
+			return (s, a, as, o, os, t, to, length) -> {
+				final double[][] source = (double[][])s;
+				final double[] target = (double[])t;
+				for (int i = 0; i < length; ++i, a += as, o += os)
+					target[to + i] = source[(int)a][(int)o];
+			};
+		else
+			throw new IllegalArgumentException("unsupported array: " + array.getClass().getName());
+	}
+
+	public static void main(String[] args) {
+
+		new ImageJ();
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// the xz and yz orientations of Task7_Views.permuteAxes
+		final int[] xz = new int[]{0, 2, 1};
+		final int[] yz = new int[]{1, 2, 0};
+
+		for (int i = 0; i < 3; ++i) {
+			long time = System.currentTimeMillis();
+
+			final PlanarImg<UnsignedByteType, ?> copy = new PlanarImgFactory<>(new UnsignedByteType()).create(permute(img, yz));
+			Blocks.copy(Views.zeroMin(permute(img, yz)), copy);
+
+			System.out.println("copy of the permuted view: " + (System.currentTimeMillis() - time) + " ms");
+
+			time = System.currentTimeMillis();
+			transpose(img, yz, 64, numThreads);
+			System.out.println("tiled transpose: " + (System.currentTimeMillis() - time) + " ms");
+		}
+
+		ImageJFunctions.show(transpose(img, xz, 64, numThreads)).setTitle("xz");
+		ImageJFunctions.show(transpose(img, yz, 64, numThreads)).setTitle("yz");
+	}
+}
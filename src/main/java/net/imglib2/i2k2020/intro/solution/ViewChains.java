@@ -0,0 +1,419 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.SubsampleView;
+import net.imglib2.view.Views;
+
+/**
+ * Collapse chains of views (translate, permute, hyperSlice, addDimension,
+ * invertAxis, subsample, interval) into a single transformation on top of the
+ * underlying image or a single out-of-bounds extension of it. Every pixel
+ * access then goes through one layer instead of one layer per view.
+ */
+public class ViewChains {
+
+	/**
+	 * Flatten a chain of views. Chains of translate, permute, hyperSlice,
+	 * addDimension and invertAxis become one MixedTransformView, chains that
+	 * contain subsampling become one {@link ScaledMixedView}. An out-of-bounds
+	 * extension ends the chain, the image it extends is flattened separately.
+	 *
+	 * @param view
+	 * @return a flat view with the same interval and content
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T> RandomAccessibleInterval<T> flatten(final RandomAccessibleInterval<T> view) {
+
+		final int n = view.numDimensions();
+
+		// maps the coordinates of the outermost view to the current level:
+		// level[c] = translation[c] + scale[c] * view[component[c]]
+		int[] component = new int[n];
+		long[] scale = new long[n];
+		long[] translation = new long[n];
+
+		for (int d = 0; d < n; ++d) {
+			component[d] = d;
+			scale[d] = 1;
+		}
+
+		RandomAccessible<T> current = view;
+		int numViews = 0;
+
+		while (true) {
+			if (current instanceof IntervalView) {
+				current = ((IntervalView<T>)current).getSource();
+			} else if (current instanceof MixedTransformView) {
+				final MixedTransformView<T> mixedView = (MixedTransformView<T>)current;
+				final MixedTransform t = mixedView.getTransformToSource();
+				final int m = t.numTargetDimensions();
+
+				final long[] tTranslation = new long[m];
+				final int[] tComponent = new int[m];
+				final boolean[] tZero = new boolean[m];
+				final boolean[] tInversion = new boolean[m];
+
+				t.getTranslation(tTranslation);
+				t.getComponentMapping(tComponent);
+				t.getComponentZero(tZero);
+				t.getComponentInversion(tInversion);
+
+				final int[] nextComponent = new int[m];
+				final long[] nextScale = new long[m];
+				final long[] nextTranslation = new long[m];
+
+				for (int c = 0; c < m; ++c) {
+					if (tZero[c]) {
+						nextComponent[c] = -1;
+						nextTranslation[c] = tTranslation[c];
+					} else {
+						final int k = tComponent[c];
+						final long sign = tInversion[c] ? -1 : 1;
+
+						nextComponent[c] = component[k];
+						nextScale[c] = sign * scale[k];
+						nextTranslation[c] = tTranslation[c] + sign * translation[k];
+					}
+				}
+
+				component = nextComponent;
+				scale = nextScale;
+				translation = nextTranslation;
+
+				current = mixedView.getSource();
+			} else if (current instanceof SubsampleView) {
+				final SubsampleView<T> subsampleView = (SubsampleView<T>)current;
+				final long[] steps = subsampleView.getSteps();
+
+				for (int c = 0; c < component.length; ++c) {
+					scale[c] *= steps[c];
+					translation[c] *= steps[c];
+				}
+
+				current = subsampleView.getSource();
+			} else {
+				break;
+			}
+
+			++numViews;
+		}
+
+		// nothing to flatten
+		if (numViews <= 1 && !(current instanceof ExtendedRandomAccessibleInterval))
+			return view;
+
+		final RandomAccessible<T> base;
+
+		if (current instanceof ExtendedRandomAccessibleInterval) {
+			final ExtendedRandomAccessibleInterval extended = (ExtendedRandomAccessibleInterval)current;
+			base = new ExtendedRandomAccessibleInterval(flatten(extended.getSource()), extended.getOutOfBoundsFactory());
+		} else {
+			base = current;
+		}
+
+		boolean isMixed = true;
+		for (int c = 0; c < component.length; ++c)
+			isMixed &= Math.abs(scale[c]) <= 1;
+
+		if (isMixed) {
+			final MixedTransform t = new MixedTransform(n, component.length);
+			final boolean[] zero = new boolean[component.length];
+			final boolean[] inversion = new boolean[component.length];
+			final int[] mapping = new int[component.length];
+
+			for (int c = 0; c < component.length; ++c) {
+				zero[c] = component[c] < 0;
+				inversion[c] = scale[c] < 0;
+				mapping[c] = Math.max(0, component[c]);
+			}
+
+			t.setTranslation(translation);
+			t.setComponentMapping(mapping);
+			t.setComponentZero(zero);
+			t.setComponentInversion(inversion);
+
+			return Views.interval(new MixedTransformView<>(base, t), view);
+		}
+
+		return new ScaledMixedView<>(base, view, component, scale, translation);
+	}
+
+	/**
+	 * A view in which every coordinate of the source is an integer multiple of
+	 * at most one coordinate of the view plus an offset:
+	 * source[c] = translation[c] + scale[c] * view[component[c]]
+	 *
+	 * @param <T>
+	 */
+	public static class ScaledMixedView<T> extends AbstractWrappedInterval<Interval> implements RandomAccessibleInterval<T> {
+
+		protected final RandomAccessible<T> source;
+		protected final int[] component;
+		protected final long[] scale, translation;
+
+		/**
+		 * @param source
+		 * @param interval
+		 *            - the interval of the view
+		 * @param component
+		 *            - for every source dimension the view dimension it
+		 *            depends on, -1 if constant
+		 * @param scale
+		 * @param translation
+		 */
+		public ScaledMixedView(final RandomAccessible<T> source, final Interval interval, final int[] component, final long[] scale, final long[] translation) {
+
+			super(interval);
+
+			this.source = source;
+			this.component = component;
+			this.scale = scale;
+			this.translation = translation;
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess() {
+
+			return new ScaledMixedRandomAccess<>(source.randomAccess(), numDimensions(), component, scale, translation);
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess(final Interval interval) {
+
+			return randomAccess();
+		}
+	}
+
+	/**
+	 * Moves a source access along with its own position, only the source
+	 * dimensions that depend on a moved view dimension are updated
+	 *
+	 * @param <T>
+	 */
+	public static class ScaledMixedRandomAccess<T> extends Point implements RandomAccess<T> {
+
+		protected final RandomAccess<T> access;
+		protected final int[] component;
+		protected final long[] scale, translation;
+
+		// for every view dimension the source dimensions that depend on it
+		protected final int[][] targets;
+
+		public ScaledMixedRandomAccess(final RandomAccess<T> access, final int n, final int[] component, final long[] scale, final long[] translation) {
+
+			super(n);
+
+			this.access = access;
+			this.component = component;
+			this.scale = scale;
+			this.translation = translation;
+
+			final int[] count = new int[n];
+			for (int c = 0; c < component.length; ++c)
+				if (component[c] >= 0)
+					++count[component[c]];
+
+			targets = new int[n][];
+			for (int d = 0; d < n; ++d)
+				targets[d] = new int[count[d]];
+
+			Arrays.fill(count, 0);
+			for (int c = 0; c < component.length; ++c)
+				if (component[c] >= 0)
+					targets[component[c]][count[component[c]]++] = c;
+
+			for (int c = 0; c < component.length; ++c)
+				access.setPosition(component[c] >= 0 ? translation[c] + scale[c] * position[component[c]] : translation[c], c);
+		}
+
+		protected void update(final int d) {
+
+			for (final int c : targets[d])
+				access.setPosition(translation[c] + scale[c] * position[d], c);
+		}
+
+		protected void update() {
+
+			for (int d = 0; d < n; ++d)
+				update(d);
+		}
+
+		@Override
+		public T get() {
+
+			return access.get();
+		}
+
+		@Override
+		public ScaledMixedRandomAccess<T> copy() {
+
+			final ScaledMixedRandomAccess<T> copy = new ScaledMixedRandomAccess<>(access.copyRandomAccess(), n, component, scale, translation);
+			copy.setPosition(this);
+
+			return copy;
+		}
+
+		@Override
+		public ScaledMixedRandomAccess<T> copyRandomAccess() {
+
+			return copy();
+		}
+
+		@Override
+		public void fwd(final int d) {
+
+			++position[d];
+
+			for (final int c : targets[d])
+				access.move(scale[c], c);
+		}
+
+		@Override
+		public void bck(final int d) {
+
+			--position[d];
+
+			for (final int c : targets[d])
+				access.move(-scale[c], c);
+		}
+
+		@Override
+		public void move(final int distance, final int d) {
+
+			move((long)distance, d);
+		}
+
+		@Override
+		public void move(final long distance, final int d) {
+
+			position[d] += distance;
+
+			for (final int c : targets[d])
+				access.move(scale[c] * distance, c);
+		}
+
+		@Override
+		public void move(final Localizable localizable) {
+
+			super.move(localizable);
+			update();
+		}
+
+		@Override
+		public void move(final int[] distance) {
+
+			super.move(distance);
+			update();
+		}
+
+		@Override
+		public void move(final long[] distance) {
+
+			super.move(distance);
+			update();
+		}
+
+		@Override
+		public void setPosition(final Localizable localizable) {
+
+			super.setPosition(localizable);
+			update();
+		}
+
+		@Override
+		public void setPosition(final int[] pos) {
+
+			super.setPosition(pos);
+			update();
+		}
+
+		@Override
+		public void setPosition(final long[] pos) {
+
+			super.setPosition(pos);
+			update();
+		}
+
+		@Override
+		public void setPosition(final int pos, final int d) {
+
+			setPosition((long)pos, d);
+		}
+
+		@Override
+		public void setPosition(final long pos, final int d) {
+
+			position[d] = pos;
+			update(d);
+		}
+	}
+
+	/**
+	 * Sum all pixels in flat iteration order and report the time it took
+	 *
+	 * @param img
+	 * @param name
+	 * @param repetitions
+	 */
+	public static <T extends RealType<T>> void benchmark(final RandomAccessibleInterval<T> img, final String name, final int repetitions) {
+
+		double sum = 0;
+
+		// warm up
+		for (final T t : Views.flatIterable(img))
+			sum += t.getRealDouble();
+
+		final long start = System.nanoTime();
+
+		for (int r = 0; r < repetitions; ++r)
+			for (final T t : Views.flatIterable(img))
+				sum += t.getRealDouble();
+
+		final double ms = (System.nanoTime() - start) / 1000000.0 / repetitions;
+
+		System.out.println(name + ": " + ms + " ms per iteration (checksum " + sum + ")");
+	}
+
+	public static void main(String[] args) {
+
+		final Img<UnsignedByteType> img = ImagePlusImgs.from(
+				IJ.openImage("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip"));
+
+		// ComplexTask2_Gradient.shiftMirrored
+		final RandomAccessibleInterval<UnsignedByteType> shifted = ComplexTask2_Gradient.shiftMirrored(img, new long[]{1, 0, 0});
+
+		// a deep chain: permute, slice, invert, subsample and shift a
+		// mirrored, translated image
+		RandomAccessibleInterval<UnsignedByteType> deep = Views.interval(Views.translate(Views.extendMirrorSingle(Views.zeroMin(Views.translate(img, 10, 10, 10))), 5, -3, 2), img);
+		deep = Views.permute(deep, 0, 1);
+		deep = Views.invertAxis(deep, 0);
+		deep = Views.addDimension(Views.hyperSlice(deep, 2, img.dimension(2) / 2), 0, 9);
+		deep = Views.zeroMin(Views.subsample(deep, 2, 1, 1));
+
+		final int repetitions = 10;
+
+		for (int i = 0; i < 3; ++i) {
+			benchmark(shifted, "shiftMirrored, chain", repetitions);
+			benchmark(flatten(shifted), "shiftMirrored, flat", repetitions);
+			benchmark(deep, "deep chain", repetitions);
+			benchmark(flatten(deep), "deep chain, flat", repetitions);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package net.imglib2.i2k2020.intro.solution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import bdv.util.BdvFunctions;
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Open multi-page image files lazily, planes are only decoded when they are
+ * accessed and then kept in a size-bounded cache
+ */
+public class VirtualStackImgs {
+
+	/**
+	 * Open a multi-page file (e.g. a TIFF stack) as a 3d Img whose cells are
+	 * the planes of the stack. A plane is decoded on first access and kept in
+	 * a least-recently-used cache of at most maxCachedPlanes planes. Different
+	 * planes can be decoded concurrently by different threads.
+	 *
+	 * Remote files are downloaded and zip archives are unpacked once into a
+	 * temporary file, as compressed data cannot be accessed plane by plane.
+	 *
+	 * @param path
+	 *            - a file or URL, for example a .tif or .tif.zip
+	 * @param maxCachedPlanes
+	 *            - how many decoded planes are kept in memory
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> openVirtual(final String path, final long maxCachedPlanes) throws IOException {
+
+		final ImagePlus imp = IJ.openVirtual(localFile(path).getAbsolutePath());
+
+		if (imp == null)
+			throw new IOException("could not open '" + path + "' as virtual stack.");
+
+		final ImageStack stack = imp.getStack();
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+
+		final NativeType type;
+
+		switch (imp.getType()) {
+		case ImagePlus.GRAY8:
+			type = new UnsignedByteType();
+			break;
+		case ImagePlus.GRAY16:
+			type = new UnsignedShortType();
+			break;
+		case ImagePlus.GRAY32:
+			type = new FloatType();
+			break;
+		case ImagePlus.COLOR_RGB:
+			type = new ARGBType();
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported image type: " + imp.getType());
+		}
+
+		// decode the plane and copy the primitive array into the cell
+		final CellLoader<T> loader = cell -> {
+			final Object pixels = stack.getPixels((int)cell.min(2) + 1);
+			final Object storage = ((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray();
+
+			System.arraycopy(pixels, 0, storage, 0, width * height);
+		};
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions(width, height, 1)
+				.cacheType(CacheType.BOUNDED)
+				.maxCacheSize(maxCachedPlanes);
+
+		return new ReadOnlyCachedCellImgFactory(options).create(new long[]{width, height, depth}, (T)type, loader);
+	}
+
+	/**
+	 * Make sure the file is available locally and uncompressed, downloads
+	 * URLs and unpacks the first entry of zip files into temporary files
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	protected static File localFile(final String path) throws IOException {
+
+		final boolean isURL = path.startsWith("http://") || path.startsWith("https://");
+
+		if (!isURL && !path.toLowerCase().endsWith(".zip"))
+			return new File(path);
+
+		final File file = File.createTempFile("virtualstack", ".tif");
+		file.deleteOnExit();
+
+		try (final InputStream in = isURL ? new URL(path).openStream() : Files.newInputStream(new File(path).toPath())) {
+			if (path.toLowerCase().endsWith(".zip")) {
+				final ZipInputStream zip = new ZipInputStream(in);
+				final ZipEntry entry = zip.getNextEntry();
+
+				if (entry == null)
+					throw new IOException("'" + path + "' is an empty zip file.");
+
+				Files.copy(zip, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		return file;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		new ImageJ();
+
+		// nothing is decoded yet
+		final CachedCellImg<UnsignedByteType, ?> img = openVirtual("https://preibischlab.mdc-berlin.de/download/lightsheet0.tif.zip", 64);
+
+		// decodes only the central plane
+		ImageJFunctions.show(Views.hyperSlice(img, 2, img.dimension(2) / 2)).setTitle("central plane");
+
+		// browsing decodes planes as BigDataViewer needs them
+		BdvFunctions.show(img, "virtual stack").setDisplayRange(0, 255);
+	}
+}